@@ -0,0 +1,66 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of canonicalizing with a table of DomainRules against the hard coded format. none uses no
+ * table, misses a table of thousands of domains that none of the emails are in, and hits the same table with rules
+ * for the domains of the EmailCorpus as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(DomainRulesBenchmark.SIZE)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DomainRulesBenchmark {
+    static final int SIZE = 10000;
+    private static final int DOMAINS = 5000;
+
+    @Param({"none", "misses", "hits"})
+    String table;
+
+    private List<String> raw;
+    private EmailCanonicalizer canonicalizer;
+
+    @Setup
+    public void setup() {
+        DomainRules rules = DomainRules.NONE;
+        if (!table.equals("none")) {
+            StringBuilder entries = new StringBuilder();
+            for (int i = 0; i < DOMAINS; i++) {
+                entries.append("provider").append(i).append(".com dots separators=+ lowercase\n")
+                        .append("*.provider").append(i).append(".net lowercase\n");
+            }
+            if (table.equals("hits")) {
+                entries.append("gmail.com dots separators=+ lowercase\nyahoo.com separators=- lowercase\n")
+                        .append("example.org separators=+\n*.example.co.uk lowercase\n");
+            }
+            rules = DomainRules.parse(entries.toString());
+        }
+        canonicalizer = new EmailCanonicalizer(new ScanningAddressValidator(new CommonsAddressValidator()), rules);
+        raw = EmailCorpus.generate(SIZE, 0, 0.05, 42);
+    }
+
+    @Benchmark
+    public void canonicalize(Blackhole blackhole) {
+        for (String curr : raw) {
+            blackhole.consume(canonicalizer.canonicalize(curr));
+        }
+    }
+}
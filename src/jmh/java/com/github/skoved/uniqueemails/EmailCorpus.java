@@ -0,0 +1,111 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a reproducible list of strings for benchmarking the email pipeline. The list mixes plain emails, emails
+ * with comments, quoted local parts, bangified host routes, % escaped mail routes, plus tags and
+ * {@literal <} {@literal >} wrapping, and optionally invalid strings. A fraction of the entries repeat an earlier
+ * entry so the deduplication stages see realistic hit rates.
+ */
+public final class EmailCorpus {
+    private static final String[] DOMAINS = {"gmail.com", "yahoo.com", "example.org", "mail.example.co.uk"};
+    private static final String[] NAMES = {"sam", "koved", "alex", "jordan", "taylor", "morgan", "casey", "riley"};
+
+    private EmailCorpus() {
+    }
+
+    /**
+     * Generates a corpus.
+     *
+     * @param size the number of strings in the corpus
+     * @param duplicateRatio the fraction of strings that repeat an earlier string, between 0 and 1
+     * @param invalidRatio the fraction of strings that are not valid emails, between 0 and 1
+     * @param seed the seed of the random number generator, the same seed always gives the same corpus
+     * @return the corpus
+     */
+    public static List<String> generate(int size, double duplicateRatio, double invalidRatio, long seed) {
+        Random random = new Random(seed);
+        List<String> corpus = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (!corpus.isEmpty() && random.nextDouble() < duplicateRatio) {
+                corpus.add(corpus.get(random.nextInt(corpus.size())));
+            } else if (random.nextDouble() < invalidRatio) {
+                corpus.add(invalid(random, i));
+            } else {
+                corpus.add(valid(random, i));
+            }
+        }
+        return corpus;
+    }
+
+    private static String valid(Random random, int n) {
+        String name = NAMES[random.nextInt(NAMES.length)] + "." + NAMES[random.nextInt(NAMES.length)] + n;
+        String domain = DOMAINS[random.nextInt(DOMAINS.length)];
+        switch (random.nextInt(8)) {
+            case 0:
+                return "(comment)" + name + "@" + domain;
+            case 1:
+                return name + "@(comment( nested ))" + domain;
+            case 2:
+                return "\"" + name.replace('.', ' ') + "\"@" + domain;
+            case 3:
+                return "host" + n + "!" + name + "@relay.example.com";
+            case 4:
+                return name + "%" + domain + "@relay.example.com";
+            case 5:
+                return name + "+tag" + random.nextInt(100) + "@" + domain;
+            case 6:
+                return "Display Name <" + name + "@" + domain + ">";
+            default:
+                return name + "@" + domain;
+        }
+    }
+
+    private static String invalid(Random random, int n) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return "sam" + n + ".gmail.com";
+            case 1:
+                return "(unclosed sam" + n + "@gmail.com";
+            case 2:
+                return "sam" + n + "@gmail.notatld";
+            default:
+                return "sam " + n + "@gmail.com";
+        }
+    }
+
+    /**
+     * Writes a corpus to a file as a JSON array, so it can be sent to a running service.
+     *
+     * @param args the size, duplicate ratio, invalid ratio, seed and path of the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5) {
+            System.err.println("usage: EmailCorpus <size> <duplicate ratio> <invalid ratio> <seed> <file>");
+            System.exit(1);
+        }
+        List<String> corpus = generate(Integer.parseInt(args[0]), Double.parseDouble(args[1]),
+                Double.parseDouble(args[2]), Long.parseLong(args[3]));
+        try (Writer writer = Files.newBufferedWriter(Paths.get(args[4]), StandardCharsets.UTF_8)) {
+            writer.write('[');
+            for (int i = 0; i < corpus.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write('"');
+                writer.write(corpus.get(i).replace("\\", "\\\\").replace("\"", "\\\""));
+                writer.write('"');
+            }
+            writer.write(']');
+        }
+    }
+}
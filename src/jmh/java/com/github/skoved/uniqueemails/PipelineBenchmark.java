@@ -0,0 +1,203 @@
+package com.github.skoved.uniqueemails;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.validator.routines.EmailValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Measures every stage of the email pipeline over a generated EmailCorpus. Each benchmark processes the whole
+ * corpus, and the score is reported per email. Run with -prof gc to see the bytes allocated per email.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(PipelineBenchmark.SIZE)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    static final int SIZE = 10000;
+
+    @Param({"0.0", "0.5", "0.9"})
+    double duplicateRatio;
+
+    @Param({"0.05"})
+    double invalidRatio;
+
+    @Param({"false", "true"})
+    boolean metrics;
+
+    private List<String> raw;
+    private List<String> withoutComments;
+    private List<String> unwrapped;
+    private List<char[]> unwrappedChars;
+    private List<String> valid;
+    private byte[] validBody;
+
+    private EmailController controller;
+    private EmailValidator emailValidator;
+    private ScanningAddressValidator scanningValidator;
+    private EmailCanonicalizer canonicalizer;
+    private EmailCache cache;
+    private EmailCanonicalizer cachedCanonicalizer;
+    private List<String> unique;
+    private EmailCache smallCache;
+
+    @Setup
+    public void setup() throws IOException {
+        AddressValidator commons = new CommonsAddressValidator();
+        UniqueEmailSets sets = new UniqueEmailSets(64, false, 0, "");
+        EmailCache controllerCache = new EmailCache(0);
+        EmailBatchProcessor batchProcessor = new EmailBatchProcessor(new ScanningAddressValidator(commons),
+                DomainRules.NONE, controllerCache, new EmailMetrics(new SimpleMeterRegistry(), metrics, 64), 10000,
+                4096, 10, 0);
+        EmailAdmission admission = new EmailAdmission(0, 0, 0, 0, Duration.ZERO);
+        // files and the corpus are turned off, as they are when their directories are not set
+        controller = new EmailController(new ObjectMapper(), batchProcessor, sets,
+                new EmailSessions(sets, 1, 1, Duration.ofMinutes(1)), controllerCache,
+                new EmailFileProcessor(batchProcessor, sets, "", 1000, 16777216), new KnownEmails("", 1, 0.01, 1),
+                admission, new EmailRequests(new ObjectMapper(), batchProcessor, sets,
+                        new BatchResultCache(0, Duration.ZERO), new EmailExecutor(-1, 1, 1), admission), 12);
+        emailValidator = EmailValidator.getInstance(false, false);
+        scanningValidator = new ScanningAddressValidator(commons);
+        canonicalizer = new EmailCanonicalizer(scanningValidator);
+        cache = new EmailCache(SIZE);
+        cachedCanonicalizer = new EmailCanonicalizer(scanningValidator);
+        // far more distinct strings than the cache holds, so nearly every lookup misses
+        unique = EmailCorpus.generate(SIZE * 10, 0, invalidRatio, 43);
+        smallCache = new EmailCache(SIZE / 10);
+
+        raw = EmailCorpus.generate(SIZE, duplicateRatio, invalidRatio, 42);
+        withoutComments = new ArrayList<>();
+        unwrapped = new ArrayList<>();
+        unwrappedChars = new ArrayList<>();
+        valid = new ArrayList<>();
+        for (String curr : raw) {
+            String email = controller.removeComments(curr);
+            withoutComments.add(email);
+            email = controller.unwrap(email);
+            if (email != null) {
+                unwrapped.add(email);
+                unwrappedChars.add(email.toCharArray());
+                if (emailValidator.isValid(email)) {
+                    valid.add(email);
+                }
+            }
+        }
+        validBody = new ObjectMapper().writeValueAsBytes(EmailCorpus.generate(SIZE, duplicateRatio, 0, 42));
+    }
+
+    @Benchmark
+    public void removeComments(Blackhole blackhole) {
+        for (String curr : raw) {
+            blackhole.consume(controller.removeComments(curr));
+        }
+    }
+
+    @Benchmark
+    public void unwrap(Blackhole blackhole) {
+        for (String curr : withoutComments) {
+            blackhole.consume(controller.unwrap(curr));
+        }
+    }
+
+    @Benchmark
+    public void formatEmail(Blackhole blackhole) {
+        for (String curr : valid) {
+            blackhole.consume(controller.formatEmail(curr));
+        }
+    }
+
+    @Benchmark
+    public void commonsIsValid(Blackhole blackhole) {
+        for (String curr : unwrapped) {
+            blackhole.consume(emailValidator.isValid(curr));
+        }
+    }
+
+    @Benchmark
+    public void scanningIsValid(Blackhole blackhole) {
+        for (char[] curr : unwrappedChars) {
+            blackhole.consume(scanningValidator.isValid(curr, 0, curr.length));
+        }
+    }
+
+    @Benchmark
+    public void canonicalize(Blackhole blackhole) {
+        for (String curr : raw) {
+            blackhole.consume(canonicalizer.canonicalize(curr));
+        }
+    }
+
+    @Benchmark
+    public void cachedCanonicalize(Blackhole blackhole) {
+        for (String curr : raw) {
+            blackhole.consume(cache.canonicalize(curr, cachedCanonicalizer));
+        }
+    }
+
+    /**
+     * The baseline of missedCanonicalize, the same strings without the cache.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIZE * 10)
+    public void uniqueCanonicalize(Blackhole blackhole) {
+        for (String curr : unique) {
+            blackhole.consume(canonicalizer.canonicalize(curr));
+        }
+    }
+
+    /**
+     * The cost of the cache on strings it does not hold.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIZE * 10)
+    public void missedCanonicalize(Blackhole blackhole) {
+        for (String curr : unique) {
+            blackhole.consume(smallCache.canonicalize(curr, cachedCanonicalizer));
+        }
+    }
+
+    @Benchmark
+    public long hashEmailSet() {
+        UniqueEmailSet set = new HashEmailSet();
+        for (String curr : valid) {
+            set.add(curr);
+        }
+        return set.size();
+    }
+
+    @Benchmark
+    public long fingerprintEmailSet() {
+        UniqueEmailSet set = new FingerprintEmailSet(64, false);
+        for (String curr : valid) {
+            set.add(curr);
+        }
+        return set.size();
+    }
+
+    @Benchmark
+    public int validateEmails() throws IOException {
+        return controller.validateEmails(new ByteArrayInputStream(validBody), new HttpHeaders()).join().getBody();
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.skoved.uniqueemails;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the cold start of the Spring web service against LightweightServer, which JMH cannot do since every run
+ * needs a new JVM. Each run starts the variant in a new JVM, times how long it takes for its port to accept
+ * connections and how long the first POST /email/validate of an EmailCorpus takes after that, then stops it. The
+ * median of each is printed.
+ * <p>
+ * Options:
+ * <ul>
+ *     <li>--runs=N runs each variant N times, 5 by default.</li>
+ *     <li>--classpath=path runs the variants with a different classpath than this JVM's.</li>
+ *     <li>--cds first starts each variant once with -XX:ArchiveClassesAtExit to write an AppCDS archive of the
+ *     classes it loads, then measures it with -XX:SharedArchiveFile. Needs Java 13 or newer and a classpath of
+ *     jars only, since classes in directories cannot be archived.</li>
+ * </ul>
+ */
+public final class StartupBenchmark {
+    private static final String[][] VARIANTS = {
+            {"spring", UniqueEmailsApplication.class.getName()},
+            {"lightweight", LightweightServer.class.getName()}};
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private StartupBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = 5;
+        String classpath = System.getProperty("java.class.path");
+        boolean cds = false;
+        for (String arg : args) {
+            if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.startsWith("--classpath=")) {
+                classpath = arg.substring("--classpath=".length());
+            } else if (arg.equals("--cds")) {
+                cds = true;
+            } else {
+                System.err.println("usage: StartupBenchmark [--runs=N] [--classpath=path] [--cds]");
+                System.exit(1);
+            }
+        }
+
+        byte[] body = new ObjectMapper().writeValueAsBytes(EmailCorpus.generate(1000, 0.5, 0, 42));
+        Path directory = Files.createTempDirectory("startup-benchmark");
+        System.out.printf("%-16s %12s %18s %12s%n", "variant", "startup ms", "first request ms", "total ms");
+        for (String[] variant : VARIANTS) {
+            List<String> options = new ArrayList<>();
+            String name = variant[0];
+            if (cds) {
+                Path archive = directory.resolve(name + ".jsa");
+                run(classpath, variant[1], Arrays.asList("-XX:ArchiveClassesAtExit=" + archive), body, directory);
+                options.add("-XX:SharedArchiveFile=" + archive);
+                name += " + cds";
+            }
+            long[] startup = new long[runs];
+            long[] firstRequest = new long[runs];
+            long[] total = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                long[] times = run(classpath, variant[1], options, body, directory);
+                startup[i] = times[0];
+                firstRequest[i] = times[1];
+                total[i] = times[0] + times[1];
+            }
+            System.out.printf("%-16s %12d %18d %12d%n", name, median(startup), median(firstRequest), median(total));
+        }
+        System.out.println("Output of the servers is in " + directory);
+    }
+
+    /**
+     * Starts a variant, sends it a batch and stops it.
+     *
+     * @return the milliseconds until the port accepted connections and the milliseconds the batch took
+     */
+    private static long[] run(String classpath, String mainClass, List<String> options, byte[] body, Path directory)
+            throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(options);
+        command.addAll(Arrays.asList("-cp", classpath, mainClass, "--server.port=" + port));
+        File log = directory.resolve(mainClass.substring(mainClass.lastIndexOf('.') + 1) + ".log").toFile();
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+        try {
+            while (!accepts(port)) {
+                if (!process.isAlive() || System.nanoTime() - start > TIMEOUT_MILLIS * 1000000) {
+                    throw new IllegalStateException(mainClass + " did not start, see " + log);
+                }
+                Thread.sleep(2);
+            }
+            long started = System.nanoTime();
+            post(port, body);
+            long answered = System.nanoTime();
+            return new long[] {(started - start) / 1000000, (answered - started) / 1000000};
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    private static boolean accepts(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 100);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void post(int port, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/email/validate")
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IllegalStateException("The batch was answered with " + connection.getResponseCode());
+        }
+        try (InputStream in = connection.getInputStream()) {
+            while (in.read() != -1) {
+                // the count is not needed, only the time it took
+            }
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.skoved.uniqueemails;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+/**
+ * Compares the formats a batch can be sent to /email/validate in. Each benchmark decodes and processes a whole
+ * batch of valid emails the way the endpoint does, and the score is reported per email. The number of bytes each
+ * format sends per email is printed when the benchmark starts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(WireFormatBenchmark.SIZE)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireFormatBenchmark {
+    static final int SIZE = 10000;
+
+    @Param({"json", "text", "json-gzip", "text-gzip"})
+    String format;
+
+    private EmailRequests requests;
+    private byte[] body;
+    private HttpHeaders headers;
+    private boolean gzip;
+
+    @Setup
+    public void setup() throws IOException {
+        AddressValidator commons = new CommonsAddressValidator();
+        UniqueEmailSets sets = new UniqueEmailSets(64, false, 0, "");
+        EmailCache cache = new EmailCache(0);
+        requests = new EmailRequests(new ObjectMapper(),
+                new EmailBatchProcessor(new ScanningAddressValidator(commons), DomainRules.NONE, cache,
+                        new EmailMetrics(new SimpleMeterRegistry(), false, 64), 10000, 4096, 10, 0), sets,
+                new BatchResultCache(0, Duration.ZERO), new EmailExecutor(-1, 1, 1),
+                new EmailAdmission(0, 0, 0, 0, Duration.ZERO));
+
+        List<String> corpus = EmailCorpus.generate(SIZE, 0.5, 0, 42);
+        headers = new HttpHeaders();
+        if (format.startsWith("text")) {
+            body = (String.join("\n", corpus) + "\n").getBytes(StandardCharsets.UTF_8);
+            headers.setContentType(MediaType.TEXT_PLAIN);
+        } else {
+            body = new ObjectMapper().writeValueAsBytes(corpus);
+        }
+        gzip = format.endsWith("gzip");
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+        }
+        System.out.printf("%n%s: %d bytes, %.1f bytes per email%n", format, body.length, (double) body.length / SIZE);
+    }
+
+    @Benchmark
+    public int validateEmails() throws IOException {
+        InputStream in = new ByteArrayInputStream(body);
+        return requests.validate(gzip ? GzipRequestFilter.decode(in) : in, headers).join().getBody();
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * Checks whether an email, once comments and {@literal <} {@literal >} have been removed, is a valid email address.
+ * The email is passed as a range of a char array so EmailCanonicalizer can validate it straight from its buffer.
+ * Implementations must be thread safe.
+ */
+interface AddressValidator {
+
+    /**
+     * @param email the array holding the email
+     * @param start the index the email begins at
+     * @param end the index the email ends at
+     * @return true if the email is a valid email address
+     */
+    boolean isValid(char[] email, int start, int end);
+}
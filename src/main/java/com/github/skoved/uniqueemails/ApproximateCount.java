@@ -0,0 +1,52 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * The response of the approximate endpoint of EmailController. Holds an estimate of the number of unique emails and
+ * the range the true number falls in with roughly 95% confidence.
+ */
+public class ApproximateCount {
+    private final long estimate;
+    private final double standardError;
+    private final long lowerBound;
+    private final long upperBound;
+
+    /**
+     * Creates a new ApproximateCount from a HyperLogLog.
+     *
+     * @param hyperLogLog the HyperLogLog the unique emails were added to
+     */
+    ApproximateCount(HyperLogLog hyperLogLog) {
+        estimate = hyperLogLog.size();
+        standardError = hyperLogLog.standardError();
+        lowerBound = Math.max(0, (long) Math.floor(estimate * (1 - 2 * standardError)));
+        upperBound = (long) Math.ceil(estimate * (1 + 2 * standardError));
+    }
+
+    /**
+     * @return the estimated number of unique emails
+     */
+    public long getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @return the relative standard error of the estimate
+     */
+    public double getStandardError() {
+        return standardError;
+    }
+
+    /**
+     * @return the estimate minus two standard errors
+     */
+    public long getLowerBound() {
+        return lowerBound;
+    }
+
+    /**
+     * @return the estimate plus two standard errors
+     */
+    public long getUpperBound() {
+        return upperBound;
+    }
+}
@@ -0,0 +1,286 @@
+package com.github.skoved.uniqueemails;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the result of the batches validated by /email/validate by the SHA-256 hash of their body, so a client
+ * that sends the same batch again can skip uploading it. The body is hashed as it streams in, after it has been
+ * decompressed, and the hash is returned as the ETag of the result. A client that sends the ETag back in
+ * If-None-Match with an empty body is answered from the cache. A request with a body is always processed, so a
+ * stale ETag cannot stand in for a different body. Since the ETag
+ * is just the hex SHA-256 of the body, clients can also compute it themselves before their first upload.
+ * <p>
+ * Both counts and errors caused by the body, such as invalid emails, are remembered. An error is remembered by
+ * what it reports rather than as the exception itself, and every hit throws a new exception, so the stack trace
+ * of the first request is never shown for a later one. Errors that depend on the load of the server, such as
+ * rejected requests, are not remembered. The cache holds at most max-size results, each for at
+ * most expire-after, and a max-size of 0 turns it off along with the hashing. Lookups are published to Micrometer
+ * as the cache named email.result.cache, and email.result.cache.repeats counts bodies that were uploaded and
+ * processed again although their result was already cached.
+ */
+@Component
+public class BatchResultCache implements MeterBinder {
+    private static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long MAX_UNREAD = 1 << 16;
+
+    private final Cache<String, Object> cache;
+    private volatile Counter repeats;
+
+    /**
+     * Creates a new BatchResultCache.
+     *
+     * @param maxSize the most results remembered, or 0 to turn the cache off
+     * @param expireAfter how long a result is remembered after it was computed
+     */
+    public BatchResultCache(@Value("${email.result-cache.max-size:10000}") long maxSize,
+                            @Value("${email.result-cache.expire-after:10m}") Duration expireAfter) {
+        if (maxSize < 0 || expireAfter.isNegative()) {
+            throw new IllegalArgumentException("email.result-cache.max-size and email.result-cache.expire-after must"
+                    + " not be negative.");
+        }
+        cache = maxSize == 0 ? null : Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireAfter)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Looks up the ETags a client sent in If-None-Match.
+     *
+     * @param etags the ETags, with their quotes
+     * @param contentType the Content-Type of the request, since the same bytes can be JSON or text
+     * @return the first ETag with a cached count, or null if none of them has one
+     * @throws IllegalArgumentException a new copy of the error the body of the first ETag with a cached error
+     * caused
+     */
+    Hit get(List<String> etags, MediaType contentType) {
+        if (cache == null) {
+            return null;
+        }
+        for (String etag : etags) {
+            Object result = cache.getIfPresent(key(format(contentType), etag));
+            if (result instanceof Failure) {
+                throw ((Failure) result).toException();
+            }
+            if (result != null) {
+                return new Hit(etag, (Integer) result);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts hashing the body of a request.
+     *
+     * @param body the request body, or null if it has none
+     * @param contentType the Content-Type of the request
+     * @return the hashing of the body
+     */
+    Hashing hash(InputStream body, MediaType contentType) {
+        return new Hashing(body, format(contentType));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (cache == null) {
+            return;
+        }
+        new CaffeineCacheMetrics(cache, "email.result.cache", Collections.emptyList()).bindTo(registry);
+        repeats = Counter.builder("email.result.cache.repeats")
+                .description("The bodies processed again although their result was cached")
+                .register(registry);
+    }
+
+    private static String format(MediaType contentType) {
+        if (contentType != null && MediaType.TEXT_PLAIN.isCompatibleWith(contentType)) {
+            return "text;" + (contentType.getCharset() == null ? "UTF-8" : contentType.getCharset().name());
+        }
+        return "json";
+    }
+
+    private static String key(String format, String etag) {
+        return format + etag;
+    }
+
+    /**
+     * An error caused by a body, kept as what it reports so that each hit can throw an exception of its own.
+     */
+    private static final class Failure {
+        private final String message;
+        private final long invalidCount;
+        private final List<InvalidEmail> sample;
+
+        private Failure(IllegalArgumentException error) {
+            message = error.getMessage();
+            if (error instanceof InvalidEmailsException) {
+                invalidCount = ((InvalidEmailsException) error).getInvalidCount();
+                sample = Collections.unmodifiableList(new ArrayList<>(((InvalidEmailsException) error).getSample()));
+            } else {
+                invalidCount = 0;
+                sample = null;
+            }
+        }
+
+        private IllegalArgumentException toException() {
+            // only errors of batches that were read to the end are cached, so they were never stopped
+            return sample == null ? new IllegalArgumentException(message)
+                    : new InvalidEmailsException(invalidCount, sample, false);
+        }
+    }
+
+    /**
+     * A cached count and its ETag.
+     */
+    static final class Hit {
+        private final String etag;
+        private final int count;
+
+        private Hit(String etag, int count) {
+            this.etag = etag;
+            this.count = count;
+        }
+
+        /**
+         * @return the ETag, with its quotes
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return the number of unique emails in the body
+         */
+        int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Hashes a request body as it is read and caches the result of processing it. The readers close the body when
+     * they are done with it, which may be before its end, so closing the body given to them is put off until the
+     * Hashing is closed and the rest of the body has been hashed.
+     */
+    final class Hashing implements Closeable {
+        private final InputStream original;
+        private final DigestInputStream digest;
+        private final String format;
+
+        private Hashing(InputStream body, String format) {
+            this.original = body;
+            this.format = format;
+            if (cache == null || body == null) {
+                this.digest = null;
+                return;
+            }
+            try {
+                this.digest = new DigestInputStream(body, MessageDigest.getInstance(ALGORITHM)) {
+                    @Override
+                    public void close() {
+                        // closed along with the Hashing
+                    }
+                };
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Every Java platform supports " + ALGORITHM + ".", e);
+            }
+        }
+
+        /**
+         * @return the body to process, which hashes what is read from it
+         */
+        InputStream getBody() {
+            return digest == null ? original : digest;
+        }
+
+        /**
+         * Caches the count of a body that was processed.
+         *
+         * @param count the number of unique emails in the body
+         * @return the ETag of the body, or null if the cache is turned off
+         * @throws IOException if the rest of the body cannot be read
+         */
+        String complete(int count) throws IOException {
+            if (digest == null) {
+                return null;
+            }
+            String etag = finish(Long.MAX_VALUE);
+            put(etag, count);
+            return etag;
+        }
+
+        /**
+         * Caches an error caused by the body. Nothing is cached if the rest of the body cannot be read or is more
+         * than MAX_UNREAD bytes, since it would have to be read just to be hashed.
+         *
+         * @param error the error the body caused
+         */
+        void fail(IllegalArgumentException error) {
+            if (digest == null) {
+                return;
+            }
+            try {
+                String etag = finish(MAX_UNREAD);
+                if (etag != null) {
+                    put(etag, new Failure(error));
+                }
+            } catch (IOException | RuntimeException e) {
+                // the body could not be read to the end, so it has no hash to remember the error by
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (original != null) {
+                original.close();
+            }
+        }
+
+        /**
+         * Reads the rest of the body, which the readers stop short of when it ends in whitespace or has an error,
+         * and returns its hash, or null if more than limit bytes were left.
+         */
+        private String finish(long limit) throws IOException {
+            byte[] buffer = new byte[8192];
+            long unread = 0;
+            for (int n; (n = digest.read(buffer)) != -1; ) {
+                unread += n;
+                if (unread > limit) {
+                    return null;
+                }
+            }
+            byte[] hash = digest.getMessageDigest().digest();
+            StringBuilder etag = new StringBuilder(2 + 2 * hash.length).append('"');
+            for (byte b : hash) {
+                etag.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+            return etag.append('"').toString();
+        }
+
+        private void put(String etag, Object result) {
+            String key = key(format, etag);
+            if (repeats != null && cache.asMap().containsKey(key)) {
+                repeats.increment();
+            }
+            cache.put(key, result);
+        }
+    }
+}
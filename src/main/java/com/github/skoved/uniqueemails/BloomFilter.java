@@ -0,0 +1,130 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of 128 bit email fingerprints. Each fingerprint sets k bits picked by double hashing its two
+ * halves, so mightContain never misses a fingerprint that was put and only wrongly reports one that was not at
+ * roughly the false positive rate the filter was sized for. Bits are set atomically, so fingerprints can be put
+ * and checked by many threads at once without a lock.
+ */
+class BloomFilter {
+    private static final int MAGIC = 0x42464C01;
+
+    private final long bitCount;
+    private final int hashes;
+    private final AtomicLongArray bits;
+
+    /**
+     * Creates a new, empty BloomFilter.
+     *
+     * @param expectedEmails the number of fingerprints the filter is sized for
+     * @param falsePositiveRate the rate of false positives once expectedEmails fingerprints have been put
+     */
+    BloomFilter(long expectedEmails, double falsePositiveRate) {
+        if (expectedEmails < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("The expected emails must be positive and the false positive rate"
+                    + " must be between 0 and 1.");
+        }
+        double ln2 = Math.log(2);
+        long optimalBits = (long) Math.ceil(-expectedEmails * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long words = Math.max(1, (optimalBits + 63) / 64);
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The Bloom filter would need more than 2^37 bits.");
+        }
+        this.bitCount = words * 64;
+        this.hashes = Math.max(1, (int) Math.round((double) bitCount / expectedEmails * ln2));
+        this.bits = new AtomicLongArray((int) words);
+    }
+
+    private BloomFilter(long bitCount, int hashes, AtomicLongArray bits) {
+        this.bitCount = bitCount;
+        this.hashes = hashes;
+        this.bits = bits;
+    }
+
+    /**
+     * @param h1 the first 64 bits of the fingerprint
+     * @param h2 the second 64 bits of the fingerprint
+     * @return false if the fingerprint was definitely never put, true if it probably was
+     */
+    boolean mightContain(long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param h1 the first 64 bits of the fingerprint
+     * @param h2 the second 64 bits of the fingerprint
+     */
+    void put(long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            long curr;
+            while (((curr = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, curr, curr | mask)) {
+                // another thread set a bit of the same word, try again
+            }
+        }
+    }
+
+    /**
+     * @return the number of bits in the filter
+     */
+    long getBitCount() {
+        return bitCount;
+    }
+
+    /**
+     * Writes the filter so it can be read back by readFrom. Fingerprints put while the filter is written may or may
+     * not be included.
+     *
+     * @param out the stream the filter is written to
+     * @throws IOException if the stream cannot be written to
+     */
+    void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeLong(bitCount);
+        data.writeInt(hashes);
+        for (int i = 0; i < bits.length(); i++) {
+            data.writeLong(bits.get(i));
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a filter written by writeTo.
+     *
+     * @param in the stream the filter is read from
+     * @return the filter
+     * @throws IOException if the stream cannot be read or does not hold a filter
+     */
+    static BloomFilter readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("The stream does not hold a Bloom filter.");
+        }
+        long bitCount = data.readLong();
+        int hashes = data.readInt();
+        if (bitCount < 64 || bitCount % 64 != 0 || bitCount / 64 > Integer.MAX_VALUE || hashes < 1) {
+            throw new IOException("The Bloom filter is corrupt.");
+        }
+        AtomicLongArray bits = new AtomicLongArray((int) (bitCount / 64));
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, data.readLong());
+        }
+        return new BloomFilter(bitCount, hashes, bits);
+    }
+}
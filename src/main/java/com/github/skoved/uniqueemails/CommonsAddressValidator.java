@@ -0,0 +1,16 @@
+package com.github.skoved.uniqueemails;
+
+import org.apache.commons.validator.routines.EmailValidator;
+
+/**
+ * An AddressValidator that uses the EmailValidator found in Apache commons-validator, not allowing local
+ * addresses or addresses whose domain is only a top level domain.
+ */
+class CommonsAddressValidator implements AddressValidator {
+    private final EmailValidator emailValidator = EmailValidator.getInstance(false, false);
+
+    @Override
+    public boolean isValid(char[] email, int start, int end) {
+        return emailValidator.isValid(new String(email, start, end - start));
+    }
+}
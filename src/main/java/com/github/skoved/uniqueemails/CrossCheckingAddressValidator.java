@@ -0,0 +1,46 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs two AddressValidators on every email and logs the emails they disagree on. The result of the reference
+ * validator is always used, so this can be turned on in production to check a new validator against real data.
+ */
+class CrossCheckingAddressValidator implements AddressValidator {
+    private static final Logger log = LoggerFactory.getLogger(CrossCheckingAddressValidator.class);
+
+    private final AddressValidator reference;
+    private final AddressValidator candidate;
+    private final AtomicLong disagreements = new AtomicLong();
+
+    /**
+     * Creates a new CrossCheckingAddressValidator.
+     *
+     * @param reference the validator whose result is used
+     * @param candidate the validator being checked against the reference
+     */
+    CrossCheckingAddressValidator(AddressValidator reference, AddressValidator candidate) {
+        this.reference = reference;
+        this.candidate = candidate;
+    }
+
+    @Override
+    public boolean isValid(char[] email, int start, int end) {
+        boolean valid = reference.isValid(email, start, end);
+        if (candidate.isValid(email, start, end) != valid) {
+            disagreements.incrementAndGet();
+            log.warn("The validators disagree on whether {} is valid. Using the reference result {}.",
+                    new String(email, start, end - start), valid);
+        }
+        return valid;
+    }
+
+    /**
+     * @return the number of emails the two validators have disagreed on
+     */
+    long getDisagreements() {
+        return disagreements.get();
+    }
+}
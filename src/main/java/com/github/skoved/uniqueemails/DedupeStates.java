@@ -0,0 +1,369 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Serializes UniqueEmailSets so the unique emails counted by several instances of the service can be merged into
+ * one count. Counts cannot simply be added up, because the same email may have been sent to more than one
+ * instance, but the sets behind them can be merged.
+ * <p>
+ * Each state starts with a 4 byte magic number and a type byte, so states can be concatenated and read back one
+ * after another. An exact state holds the fingerprints of a FingerprintEmailSet sorted as unsigned numbers, each
+ * written as a variable length difference from the one before it. The differences between n sorted random 64 bit
+ * fingerprints are about 2^64 / n, so a state of a million emails takes 7 bytes per email instead of 8, and the
+ * second half of 128 bit fingerprints is written as is. An approximate state holds the precision and registers of
+ * a HyperLogLog.
+ */
+final class DedupeStates {
+    private static final int MAGIC = 0x55455301;
+    private static final byte FINGERPRINTS_64 = 1;
+    private static final byte FINGERPRINTS_128 = 2;
+    private static final byte HYPER_LOG_LOG = 3;
+
+    private DedupeStates() {
+    }
+
+    /**
+     * Writes the state of a set.
+     *
+     * @param set a FingerprintEmailSet that is not audited or a HyperLogLog
+     * @param out the stream the state is written to
+     * @throws IOException if the stream cannot be written to
+     */
+    static void write(UniqueEmailSet set, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        if (set instanceof HyperLogLog) {
+            HyperLogLog hyperLogLog = (HyperLogLog) set;
+            data.writeByte(HYPER_LOG_LOG);
+            data.writeByte(hyperLogLog.getPrecision());
+            data.write(hyperLogLog.getRegisters());
+        } else if (set instanceof FingerprintEmailSet) {
+            FingerprintEmailSet fingerprints = (FingerprintEmailSet) set;
+            int width = fingerprints.getWidth();
+            long[] sorted = sortedFingerprints(fingerprints);
+            FingerprintWriter writer = new FingerprintWriter(data, width, sorted.length / width);
+            for (int i = 0; i < sorted.length; i += width) {
+                writer.write(sorted[i], width == 2 ? sorted[i + 1] : 0);
+            }
+        } else {
+            throw new IllegalArgumentException("Only fingerprint sets and HyperLogLogs can be serialized.");
+        }
+        data.flush();
+    }
+
+    /**
+     * Starts an exact state whose fingerprints are written one at a time, so a state can be written from sorted
+     * fingerprints that are not held in a set.
+     *
+     * @param out the stream the state is written to
+     * @param width the number of longs in each fingerprint, 1 or 2
+     * @param count the number of fingerprints that will be written
+     * @return the writer, which must be given exactly count fingerprints in sorted order
+     * @throws IOException if the stream cannot be written to
+     */
+    static FingerprintWriter fingerprintWriter(OutputStream out, int width, long count) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        return new FingerprintWriter(data, width, count);
+    }
+
+    /**
+     * @param set a set that is not audited
+     * @return the fingerprints of the set sorted as unsigned numbers, each taking getWidth longs of the array
+     */
+    static long[] sortedFingerprints(FingerprintEmailSet set) {
+        return sort(set.fingerprints(), set.getWidth());
+    }
+
+    /**
+     * Compares two fingerprints as unsigned numbers, the first 64 bits and then the second.
+     */
+    static int compare(long h1, long h2, long otherH1, long otherH2) {
+        int first = Long.compareUnsigned(h1, otherH1);
+        return first != 0 ? first : Long.compareUnsigned(h2, otherH2);
+    }
+
+    /**
+     * Reads every state in a stream and merges them into one set.
+     *
+     * @param in the stream of concatenated states
+     * @return the merged set and the number of states read
+     * @throws IOException if the stream cannot be read
+     * @throws IllegalArgumentException if the stream is empty, is not a valid state or holds states that cannot be
+     *                                  merged, such as exact and approximate states or HyperLogLogs of different
+     *                                  precisions
+     */
+    static Merged merge(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        UniqueEmailSet merged = null;
+        int states = 0;
+        try {
+            int magic;
+            while ((magic = readMagic(data)) != -1) {
+                if (magic != MAGIC) {
+                    throw new IllegalArgumentException("The request body is not a valid dedupe state.");
+                }
+                UniqueEmailSet set = read(data);
+                if (merged == null) {
+                    merged = set;
+                } else {
+                    merged.merge(set);
+                }
+                states++;
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("The request body ends part way through a dedupe state.", e);
+        }
+        if (merged == null) {
+            throw new IllegalArgumentException("Please provide at least one dedupe state.");
+        }
+        return new Merged(merged, states);
+    }
+
+    private static UniqueEmailSet read(DataInputStream data) throws IOException {
+        byte type = data.readByte();
+        if (type == HYPER_LOG_LOG) {
+            int precision = data.readByte();
+            if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION) {
+                throw new IllegalArgumentException("The dedupe state has an invalid precision.");
+            }
+            HyperLogLog hyperLogLog = new HyperLogLog(precision);
+            byte[] registers = hyperLogLog.getRegisters();
+            data.readFully(registers);
+            for (byte register : registers) {
+                if (register < 0 || register > 65 - precision) {
+                    throw new IllegalArgumentException("The dedupe state has an invalid register.");
+                }
+            }
+            return hyperLogLog;
+        }
+        if (type != FINGERPRINTS_64 && type != FINGERPRINTS_128) {
+            throw new IllegalArgumentException("The dedupe state has an unknown type.");
+        }
+
+        FingerprintEmailSet set = new FingerprintEmailSet(type == FINGERPRINTS_64 ? 64 : 128, false);
+        long count = readVarLong(data);
+        long h1 = 0;
+        for (long i = 0; i < count; i++) {
+            h1 += readVarLong(data);
+            set.addFingerprint(h1, type == FINGERPRINTS_128 ? data.readLong() : 0);
+        }
+        return set;
+    }
+
+    /**
+     * Opens an exact state to read its fingerprints one at a time, in sorted order, without building a set.
+     *
+     * @param in the stream holding the state
+     * @return a reader positioned before the first fingerprint
+     * @throws IOException if the stream cannot be read
+     * @throws IllegalArgumentException if the stream does not start with an exact state
+     */
+    static FingerprintReader fingerprints(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IllegalArgumentException("The stream is not a valid dedupe state.");
+        }
+        byte type = data.readByte();
+        if (type != FINGERPRINTS_64 && type != FINGERPRINTS_128) {
+            throw new IllegalArgumentException("The dedupe state is not exact.");
+        }
+        return new FingerprintReader(data, type == FINGERPRINTS_128, readVarLong(data));
+    }
+
+    /**
+     * @return the magic number of the next state, or -1 at the end of the stream
+     */
+    private static int readMagic(DataInputStream data) throws IOException {
+        int first = data.read();
+        if (first == -1) {
+            return -1;
+        }
+        return first << 24 | data.readUnsignedByte() << 16 | data.readUnsignedByte() << 8 | data.readUnsignedByte();
+    }
+
+    /**
+     * Sorts fingerprints as unsigned numbers, comparing the first long of each and then the second.
+     */
+    private static long[] sort(long[] fingerprints, int width) {
+        if (width == 1) {
+            // flipping the sign bit makes a signed sort order the values as unsigned
+            for (int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] ^= Long.MIN_VALUE;
+            }
+            Arrays.sort(fingerprints);
+            for (int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] ^= Long.MIN_VALUE;
+            }
+            return fingerprints;
+        }
+
+        // heap sort, so the two longs of each fingerprint stay together without boxing them
+        int n = fingerprints.length / width;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(fingerprints, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(fingerprints, 0, end);
+            siftDown(fingerprints, 0, end);
+        }
+        return fingerprints;
+    }
+
+    private static void siftDown(long[] pairs, int i, int n) {
+        for (int child = 2 * i + 1; child < n; i = child, child = 2 * i + 1) {
+            if (child + 1 < n && compare(pairs, child + 1, child) > 0) {
+                child++;
+            }
+            if (compare(pairs, child, i) <= 0) {
+                return;
+            }
+            swap(pairs, i, child);
+        }
+    }
+
+    private static int compare(long[] pairs, int i, int j) {
+        return compare(pairs[2 * i], pairs[2 * i + 1], pairs[2 * j], pairs[2 * j + 1]);
+    }
+
+    private static void swap(long[] pairs, int i, int j) {
+        for (int k = 0; k < 2; k++) {
+            long tmp = pairs[2 * i + k];
+            pairs[2 * i + k] = pairs[2 * j + k];
+            pairs[2 * j + k] = tmp;
+        }
+    }
+
+    /**
+     * Writes an unsigned long 7 bits at a time, lowest bits first, with the top bit of each byte set if more follow.
+     */
+    private static void writeVarLong(DataOutputStream data, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            data.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream data) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("The dedupe state has an invalid number.");
+    }
+
+    /**
+     * Writes the fingerprints of an exact state in sorted order.
+     */
+    static final class FingerprintWriter {
+        private final DataOutputStream data;
+        private final int width;
+        private long previous;
+
+        private FingerprintWriter(DataOutputStream data, int width, long count) throws IOException {
+            this.data = data;
+            this.width = width;
+            data.writeByte(width == 1 ? FINGERPRINTS_64 : FINGERPRINTS_128);
+            writeVarLong(data, count);
+        }
+
+        /**
+         * @param h1 the first 64 bits of the fingerprint, no smaller than the one written before it
+         * @param h2 the second 64 bits of the fingerprint, ignored for 64 bit fingerprints
+         * @throws IOException if the stream cannot be written to
+         */
+        void write(long h1, long h2) throws IOException {
+            writeVarLong(data, h1 - previous);
+            previous = h1;
+            if (width == 2) {
+                data.writeLong(h2);
+            }
+        }
+    }
+
+    /**
+     * Reads the fingerprints of an exact state in sorted order.
+     */
+    static final class FingerprintReader {
+        private final DataInputStream data;
+        private final boolean wide;
+        private long remaining;
+        private long h1;
+        private long h2;
+
+        private FingerprintReader(DataInputStream data, boolean wide, long count) {
+            this.data = data;
+            this.wide = wide;
+            this.remaining = count;
+        }
+
+        /**
+         * Moves to the next fingerprint.
+         *
+         * @return false if there are no more fingerprints
+         * @throws IOException if the stream cannot be read
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            h1 += readVarLong(data);
+            h2 = wide ? data.readLong() : 0;
+            return true;
+        }
+
+        /**
+         * @return the first 64 bits of the current fingerprint
+         */
+        long getH1() {
+            return h1;
+        }
+
+        /**
+         * @return the second 64 bits of the current fingerprint, 0 for 64 bit fingerprints
+         */
+        long getH2() {
+            return h2;
+        }
+    }
+
+    /**
+     * The result of merging a stream of states.
+     */
+    static final class Merged {
+        private final UniqueEmailSet set;
+        private final int states;
+
+        private Merged(UniqueEmailSet set, int states) {
+            this.set = set;
+            this.states = states;
+        }
+
+        /**
+         * @return the union of every state
+         */
+        UniqueEmailSet getSet() {
+            return set;
+        }
+
+        /**
+         * @return the number of states merged
+         */
+        int getStates() {
+            return states;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A table of the rules used to canonicalize the emails of each domain, compiled once into an open addressing hash
+ * table so finding the rule of an email costs one pass over its domain. Each entry is a domain followed by its
+ * options:
+ * <ul>
+ *     <li>dots removes every . from the local part, so sam.koved and samkoved are the same mailbox.</li>
+ *     <li>separators=+- cuts the local part at the first of the given characters, so sam+news and sam are the
+ *     same mailbox.</li>
+ *     <li>lowercase folds the case of the local part the way String.toLowerCase(Locale.ROOT) does.</li>
+ *     <li>alias=gmail.com replaces the domain and formats the email the same way as the emails of the domain it
+ *     is replaced with, by its rule, the * rule or the way EmailController.formatEmail does.</li>
+ * </ul>
+ * An entry for *.example.com matches every subdomain of example.com, but not example.com itself, and the entry
+ * for the longest matching domain wins. The domain of an email with a rule is always lowercased the same way. An
+ * entry for * is the rule of every other domain. Without one, other domains are formatted the way they always have
+ * been, with every . removed and the local part cut at the first +, as EmailController.formatEmail does.
+ * <p>
+ * Entries are separated by new lines or ;s, and a # starts a comment that runs to the end of the line, e.g.
+ * "gmail.com dots separators=+ lowercase; googlemail.com alias=gmail.com; outlook.com separators=+".
+ */
+final class DomainRules {
+    /**
+     * The table without any entries, which formats every email the way EmailController.formatEmail does.
+     */
+    static final DomainRules NONE = new DomainRules(new HashMap<>(), null);
+
+    private static final String WILDCARD = "*";
+
+    private final char[][] keys;
+    private final int[] hashes;
+    private final Rule[] rules;
+    private final int mask;
+    private final boolean hasSuffixes;
+    private final Rule defaultRule;
+
+    private DomainRules(Map<String, Rule> entries, Rule defaultRule) {
+        int capacity = Integer.highestOneBit(Math.max(1, entries.size()) * 4 - 1) << 1;
+        this.keys = new char[capacity][];
+        this.hashes = new int[capacity];
+        this.rules = new Rule[capacity];
+        this.mask = capacity - 1;
+        this.defaultRule = defaultRule;
+        boolean suffixes = false;
+        for (Map.Entry<String, Rule> entry : entries.entrySet()) {
+            char[] key = entry.getKey().toCharArray();
+            int hash = hash(key, 0, key.length);
+            int slot = mix(hash) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            hashes[slot] = hash;
+            rules[slot] = entry.getValue();
+            suffixes |= key[0] == '.';
+        }
+        this.hasSuffixes = suffixes;
+    }
+
+    /**
+     * Compiles a table of rules.
+     *
+     * @param table the entries of the table
+     * @return the compiled table
+     * @throws IllegalArgumentException if an entry cannot be read, a domain has more than one entry or aliases
+     * lead back to themselves
+     */
+    static DomainRules parse(String table) {
+        Map<String, String[]> entries = new HashMap<>();
+        for (String line : table.split("[\\n;]")) {
+            int comment = line.indexOf('#');
+            String[] tokens = (comment == -1 ? line : line.substring(0, comment)).trim().split("\\s+");
+            if (tokens[0].isEmpty()) {
+                continue;
+            }
+            String domain = lowerCase(tokens[0]);
+            if (domain.startsWith("*.")) {
+                domain = domain.substring(1);
+            }
+            if (domain.isEmpty() || domain.equals(".") || domain.indexOf('@') != -1
+                    || domain.indexOf('*') != -1 && !domain.equals(WILDCARD)) {
+                throw new IllegalArgumentException("The domain rule " + line.trim() + " does not start with a"
+                        + " domain, *.domain or *.");
+            }
+            if (entries.put(domain, tokens) != null) {
+                throw new IllegalArgumentException("The domain " + tokens[0] + " has more than one rule.");
+            }
+        }
+
+        Map<String, Rule> rules = new HashMap<>();
+        for (String domain : entries.keySet()) {
+            rules.put(domain, compile(domain, entries, new HashSet<>()));
+        }
+        Rule defaultRule = rules.remove(WILDCARD);
+        return rules.isEmpty() && defaultRule == null ? NONE : new DomainRules(rules, defaultRule);
+    }
+
+    /**
+     * Finds the rule of a domain.
+     *
+     * @param buf the characters holding the domain
+     * @param from the index the domain begins at
+     * @param to the index the domain ends at
+     * @return the rule of the domain, or null if it is formatted the way EmailController.formatEmail does
+     */
+    Rule find(char[] buf, int from, int to) {
+        if (from == to) {
+            return defaultRule;
+        }
+        /*
+        * hashes from the end of the domain, so the hash of every .suffix of the domain is known along the way
+        */
+        Rule suffix = null;
+        int hash = 0;
+        for (int i = to - 1; i >= from; i--) {
+            char c = buf[i];
+            hash = 31 * hash + lowerCase(c);
+            if (c == '.' && hasSuffixes && i > from) {
+                Rule rule = get(hash, buf, i, to);
+                if (rule != null) {
+                    suffix = rule;
+                }
+            }
+        }
+        Rule rule = get(hash, buf, from, to);
+        if (rule != null) {
+            return rule;
+        }
+        return suffix != null ? suffix : defaultRule;
+    }
+
+    /**
+     * @return whether the table has no entries, so every email is formatted the way EmailController.formatEmail
+     * does
+     */
+    boolean isEmpty() {
+        return this == NONE;
+    }
+
+    private Rule get(int hash, char[] buf, int from, int to) {
+        for (int slot = mix(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && matches(keys[slot], buf, from, to)) {
+                return rules[slot];
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(char[] key, char[] buf, int from, int to) {
+        if (key.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != lowerCase(buf[from + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Rule compile(String domain, Map<String, String[]> entries, Set<String> seen) {
+        if (!seen.add(domain)) {
+            throw new IllegalArgumentException("The aliases of " + domain + " lead back to it.");
+        }
+        String[] tokens = entries.get(domain);
+        boolean dots = false;
+        boolean lowercase = false;
+        String separators = "";
+        String alias = null;
+        for (int i = 1; i < tokens.length; i++) {
+            String option = tokens[i];
+            if (option.equals("dots")) {
+                dots = true;
+            } else if (option.equals("lowercase")) {
+                lowercase = true;
+            } else if (option.startsWith("separators=") && option.length() > "separators=".length()) {
+                separators = option.substring("separators=".length());
+            } else if (option.startsWith("alias=") && option.length() > "alias=".length()) {
+                alias = lowerCase(option.substring("alias=".length()));
+            } else {
+                throw new IllegalArgumentException("The domain rule of " + tokens[0] + " has an unknown option "
+                        + option + ". The options are dots, lowercase, separators=chars and alias=domain.");
+            }
+        }
+        for (int i = 0; i < separators.length(); i++) {
+            char c = separators.charAt(i);
+            if (c >= 128 || Character.isLetterOrDigit(c) || c == '.' || c == '@') {
+                throw new IllegalArgumentException("The separators of " + tokens[0] + " must be ASCII symbols"
+                        + " other than . and @.");
+            }
+        }
+        if (alias == null) {
+            return new Rule(dots, lowercase, separators, null, false);
+        }
+        if (tokens.length > 2 || alias.startsWith("*") || domain.equals(WILDCARD)) {
+            throw new IllegalArgumentException("The alias of " + tokens[0] + " must be a domain and its only"
+                    + " option.");
+        }
+        String target = entryOf(alias, entries);
+        if (target == null) {
+            // emails of the alias are formatted the same way as the emails of a domain without a rule
+            return new Rule(false, false, "", alias.toCharArray(), true);
+        }
+        Rule rule = compile(target, entries, seen);
+        return new Rule(rule.dots, rule.lowercase, rule.separators, rule.domain != null
+                ? rule.domain : alias.toCharArray(), rule.legacy);
+    }
+
+    /**
+     * Finds the entry whose rule a domain gets, the same way find does.
+     *
+     * @return the domain of the entry, the .suffix of a *.suffix entry or *, or null if the domain has no rule
+     */
+    private static String entryOf(String domain, Map<String, String[]> entries) {
+        if (entries.containsKey(domain)) {
+            return domain;
+        }
+        for (int dot = domain.indexOf('.', 1); dot != -1; dot = domain.indexOf('.', dot + 1)) {
+            if (entries.containsKey(domain.substring(dot))) {
+                return domain.substring(dot);
+            }
+        }
+        return entries.containsKey(WILDCARD) ? WILDCARD : null;
+    }
+
+    private static int hash(char[] key, int from, int to) {
+        int hash = 0;
+        for (int i = to - 1; i >= from; i--) {
+            hash = 31 * hash + key[i];
+        }
+        return hash;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static String lowerCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = lowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Folds the case of ASCII letters only, since domains are matched the same way whatever the default locale.
+     */
+    private static char lowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * How the emails of a domain are canonicalized.
+     */
+    static final class Rule {
+        private final boolean dots;
+        private final boolean lowercase;
+        private final String separators;
+        private final long lowSeparators;
+        private final long highSeparators;
+        private final char[] domain;
+        private final boolean legacy;
+
+        private Rule(boolean dots, boolean lowercase, String separators, char[] domain, boolean legacy) {
+            this.dots = dots;
+            this.lowercase = lowercase;
+            this.separators = separators;
+            long low = 0;
+            long high = 0;
+            for (int i = 0; i < separators.length(); i++) {
+                char c = separators.charAt(i);
+                if (c < 64) {
+                    low |= 1L << c;
+                } else {
+                    high |= 1L << (c - 64);
+                }
+            }
+            this.lowSeparators = low;
+            this.highSeparators = high;
+            this.domain = domain;
+            this.legacy = legacy;
+        }
+
+        /**
+         * @return whether every . is removed from the local part
+         */
+        boolean removesDots() {
+            return dots;
+        }
+
+        /**
+         * @return whether the case of the local part is folded
+         */
+        boolean lowerCases() {
+            return lowercase;
+        }
+
+        /**
+         * @return whether the local part is cut at c
+         */
+        boolean isSeparator(char c) {
+            if (c < 64) {
+                return (lowSeparators & (1L << c)) != 0;
+            }
+            return c < 128 && (highSeparators & (1L << (c - 64))) != 0;
+        }
+
+        /**
+         * @return whether the email is formatted the way EmailController.formatEmail does once its domain has been
+         * replaced, since it is an alias of a domain without a rule
+         */
+        boolean isLegacy() {
+            return legacy;
+        }
+
+        /**
+         * @return the domain that replaces the domain of the email, or null to keep it. Must not be modified.
+         */
+        char[] getDomain() {
+            return domain;
+        }
+    }
+}
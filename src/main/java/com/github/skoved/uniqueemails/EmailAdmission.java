@@ -0,0 +1,328 @@
+package com.github.skoved.uniqueemails;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits how much work the batch endpoints take on, so one huge or many concurrent requests cannot exhaust the
+ * heap. Every limit is enforced while the body is read rather than after, so an oversized request is stopped as
+ * soon as it goes over instead of once it has been held in memory.
+ * <ul>
+ *     <li>A request cannot have more than max-entries emails or max-bytes bytes. A Content-Length over max-bytes is
+ *     rejected before the body is read, and compressed bodies are limited by their decompressed size. These are
+ *     answered with a RequestTooLargeException.</li>
+ *     <li>The requests being processed cannot hold more than max-in-flight emails between them. The request that
+ *     would go over is answered with a TooManyRequestsException.</li>
+ *     <li>At most max-concurrent requests are processed at once. Requests over the limit wait in a first come,
+ *     first served queue for up to queue-timeout and are answered with a TooManyRequestsException if no room
+ *     frees up by then. No thread waits in the queue: a queued request is a future that is completed by the
+ *     request that gives up its place, or failed by a timer thread once its time is up.</li>
+ * </ul>
+ * A limit of 0 turns that limit off. The number of emails in flight, the requests waiting in the queue and the
+ * rejected requests are published to Micrometer under email.admission.
+ */
+@Component
+public class EmailAdmission implements MeterBinder, DisposableBean {
+    /*
+    * emails are reserved from the shared in flight count in blocks so concurrent requests do not contend on it
+    * for every email
+    */
+    private static final long RESERVATION = 1024;
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private final long maxInFlight;
+    private final long reservation;
+    private final int maxConcurrent;
+    private final Duration queueTimeout;
+    private final AtomicLong inFlight = new AtomicLong();
+    private final Deque<CompletableFuture<Ticket>> queue = new ArrayDeque<>();
+    private final ScheduledThreadPoolExecutor timeouts;
+    private int available;
+    private volatile MeterRegistry registry;
+
+    /**
+     * Creates a new EmailAdmission.
+     *
+     * @param maxEntries the most emails a single request can have, or 0 for no limit
+     * @param maxBytes the most bytes the body of a single request can have, or 0 for no limit
+     * @param maxInFlight the most emails the requests being processed can hold between them, or 0 for no limit
+     * @param maxConcurrent the most requests processed at once, or 0 for no limit
+     * @param queueTimeout how long a request waits for one of the max-concurrent places before it is rejected
+     */
+    public EmailAdmission(@Value("${email.limits.max-entries:0}") long maxEntries,
+                          @Value("${email.limits.max-bytes:0}") long maxBytes,
+                          @Value("${email.limits.max-in-flight:0}") long maxInFlight,
+                          @Value("${email.limits.max-concurrent:0}") int maxConcurrent,
+                          @Value("${email.limits.queue-timeout:0s}") Duration queueTimeout) {
+        if (maxEntries < 0 || maxBytes < 0 || maxInFlight < 0 || maxConcurrent < 0 || queueTimeout.isNegative()) {
+            throw new IllegalArgumentException("The email.limits settings must not be negative.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxInFlight = maxInFlight;
+        this.reservation = Math.max(1, Math.min(RESERVATION, maxInFlight));
+        this.maxConcurrent = maxConcurrent;
+        this.queueTimeout = queueTimeout;
+        this.available = maxConcurrent;
+        if (maxConcurrent == 0 || queueTimeout.isZero()) {
+            this.timeouts = null;
+        } else {
+            this.timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "email-admission-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timeouts.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Admits a request. If max-concurrent requests are already being processed the request is queued, and the
+     * returned future is completed once a place frees up, on the thread of the request that gave it up, or failed
+     * with a TooManyRequestsException once the queue timeout has passed. The ticket must be closed once the
+     * request has been processed.
+     *
+     * @param contentLength the size of the request body in bytes, or -1 if it is not known
+     * @return the ticket that enforces the limits while the body is read, already complete if the request did not
+     * have to wait
+     * @throws RequestTooLargeException if the Content-Length is over max-bytes
+     * @throws TooManyRequestsException if there is no place and requests do not wait for one
+     */
+    CompletableFuture<Ticket> admit(long contentLength) {
+        if (maxBytes > 0 && contentLength > maxBytes) {
+            throw reject("bytes", new RequestTooLargeException("The request body has " + contentLength
+                    + " bytes, more than the " + maxBytes + " allowed."));
+        }
+        if (maxConcurrent == 0) {
+            return CompletableFuture.completedFuture(new Ticket());
+        }
+        CompletableFuture<Ticket> waiting = new CompletableFuture<>();
+        synchronized (queue) {
+            if (available > 0 && queue.isEmpty()) {
+                available--;
+                return CompletableFuture.completedFuture(new Ticket());
+            }
+            if (timeouts == null) {
+                throw tooManyRequests();
+            }
+            queue.add(waiting);
+        }
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            boolean removed;
+            synchronized (queue) {
+                removed = queue.remove(waiting);
+            }
+            if (removed) {
+                waiting.completeExceptionally(tooManyRequests());
+            }
+        }, queueTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        waiting.whenComplete((ticket, e) -> timeout.cancel(false));
+        return waiting;
+    }
+
+    /**
+     * @return the number of requests waiting for a place to be processed
+     */
+    int getQueued() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return the number of emails reserved by the requests being processed, which reserve them in blocks
+     */
+    long getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("email.admission.in-flight", inFlight, AtomicLong::get)
+                .description("The emails reserved by the requests being processed")
+                .register(registry);
+        if (maxConcurrent > 0) {
+            Gauge.builder("email.admission.queued", this, EmailAdmission::getQueued)
+                    .description("The requests waiting for a place to be processed")
+                    .register(registry);
+        }
+        this.registry = registry;
+    }
+
+    @Override
+    public void destroy() {
+        if (timeouts != null) {
+            timeouts.shutdownNow();
+        }
+    }
+
+    private TooManyRequestsException tooManyRequests() {
+        return reject("concurrent", new TooManyRequestsException("The server is processing too many requests."));
+    }
+
+    /**
+     * Gives a place that was freed up to the request that has waited longest, or keeps it if none is waiting.
+     */
+    private void release() {
+        CompletableFuture<Ticket> next;
+        synchronized (queue) {
+            next = queue.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+        }
+        Ticket ticket = new Ticket();
+        if (!next.complete(ticket)) {
+            // the request stopped waiting, so the place goes to the next one
+            ticket.close();
+        }
+    }
+
+    private <E extends RuntimeException> E reject(String reason, E e) {
+        MeterRegistry meters = registry;
+        if (meters != null) {
+            Counter.builder("email.admission.rejected")
+                    .description("The requests rejected for going over a limit")
+                    .tag("reason", reason)
+                    .register(meters)
+                    .increment();
+        }
+        return e;
+    }
+
+    /**
+     * A request that has been admitted. Limits the body and the emails read from it, and gives back the
+     * request's place and reserved emails when closed.
+     */
+    class Ticket implements AutoCloseable {
+        private long entries;
+        private long reserved;
+        private boolean closed;
+
+        private Ticket() {
+        }
+
+        /**
+         * @param body the request body
+         * @return the body, limited to max-bytes bytes
+         */
+        InputStream limit(InputStream body) {
+            if (maxBytes == 0) {
+                return body;
+            }
+            return new FilterInputStream(body) {
+                private long read;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        count(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        count(n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    count(skipped);
+                    return skipped;
+                }
+
+                private void count(long n) {
+                    read += n;
+                    if (read > maxBytes) {
+                        throw reject("bytes", new RequestTooLargeException("The request body has more than the "
+                                + maxBytes + " bytes allowed."));
+                    }
+                }
+            };
+        }
+
+        /**
+         * @param reader the reader of the request body
+         * @return the reader, limited to max-entries emails and reserving each email from max-in-flight
+         */
+        EmailReader limit(EmailReader reader) {
+            if (maxEntries == 0 && maxInFlight == 0) {
+                return reader;
+            }
+            return new EmailReader() {
+                @Override
+                public String next() throws IOException {
+                    String curr = reader.next();
+                    if (curr != null) {
+                        count();
+                    }
+                    return curr;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
+
+        private void count() {
+            entries++;
+            if (maxEntries > 0 && entries > maxEntries) {
+                throw reject("entries", new RequestTooLargeException("The request has more than the " + maxEntries
+                        + " emails allowed."));
+            }
+            if (maxInFlight > 0 && entries > reserved) {
+                if (inFlight.addAndGet(reservation) > maxInFlight) {
+                    inFlight.addAndGet(-reservation);
+                    throw reject("in-flight", new TooManyRequestsException("The server is holding too many"
+                            + " emails."));
+                }
+                reserved += reservation;
+            }
+        }
+
+        /**
+         * Gives back the request's place and reserved emails. Closing a ticket more than once has no effect. A ticket
+         * is closed once its request's work returns, and EmailBatchProcessor and EmailFileProcessor only return,
+         * even when they fail, after every parallel task of the request has stopped, so the places limit the work
+         * that is actually running.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            inFlight.addAndGet(-reserved);
+            if (maxConcurrent > 0) {
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Validates and deduplicates the strings read from a request. The first strings of a batch are processed on the
+ * calling thread. Once a batch grows past the parallel threshold the rest of it is split into chunks which are
+ * validated, formatted and deduplicated on the common ForkJoinPool, then merged back in the order they were read,
+ * so the invalid emails are always reported in the order the client sent them. A sample of the strings has the
+ * time spent in each stage recorded by EmailMetrics.
+ */
+@Component
+public class EmailBatchProcessor {
+    private final ThreadLocal<EmailCanonicalizer> canonicalizers;
+    private final EmailCache cache;
+    private final EmailMetrics metrics;
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private final int chunkSize;
+    private final int sampleSize;
+    private final long stopAfter;
+
+    /**
+     * Creates a new EmailBatchProcessor that uses the common ForkJoinPool for large batches.
+     *
+     * @param addressValidator the validator used to check every email
+     * @param rules the rules used to format the emails of each domain
+     * @param cache remembers the formatted emails of frequently received strings
+     * @param metrics records the time spent in each stage and the outcome of each batch
+     * @param parallelThreshold the number of strings processed on the calling thread before the rest of a batch
+     *                          is processed in parallel
+     * @param chunkSize the number of strings handed to each parallel task
+     * @param sampleSize the number of invalid strings kept to report back to the client, the rest are only counted
+     * @param stopAfter the number of invalid strings after which the rest of a batch is not read, or 0 to always
+     *                  read the whole batch
+     */
+    public EmailBatchProcessor(AddressValidator addressValidator, DomainRules rules, EmailCache cache,
+                               EmailMetrics metrics,
+                               @Value("${email.parallel.threshold:10000}") int parallelThreshold,
+                               @Value("${email.parallel.chunk-size:4096}") int chunkSize,
+                               @Value("${email.invalid.sample-size:10}") int sampleSize,
+                               @Value("${email.invalid.stop-after:0}") long stopAfter) {
+        if (parallelThreshold < 0 || chunkSize < 1) {
+            throw new IllegalArgumentException("The parallel threshold must not be negative and the chunk size must"
+                    + " be positive.");
+        }
+        if (sampleSize < 0 || stopAfter < 0) {
+            throw new IllegalArgumentException("email.invalid.sample-size and email.invalid.stop-after must not be"
+                    + " negative.");
+        }
+        this.canonicalizers = ThreadLocal.withInitial(() -> new EmailCanonicalizer(addressValidator, rules));
+        this.cache = cache;
+        this.metrics = metrics;
+        this.pool = ForkJoinPool.commonPool();
+        this.parallelThreshold = parallelThreshold;
+        this.chunkSize = chunkSize;
+        this.sampleSize = sampleSize;
+        this.stopAfter = stopAfter;
+    }
+
+    /**
+     * Reads every string from the reader and determines which of them are valid and unique. Reading stops early
+     * once stopAfter invalid strings have been found. Past the parallel threshold whole chunks are counted, so a
+     * few more than stopAfter may be reported.
+     *
+     * @param reader the source of the strings received from the client
+     * @param sets creates the empty set the unique emails are deduplicated into, called once per batch
+     * @return the unique formatted emails, the number of invalid strings and a sample of them in the order they
+     * were read. The unique emails are only complete when there are no invalid strings.
+     * @throws IOException if the reader cannot be read
+     */
+    Result process(EmailReader reader, Supplier<? extends UniqueEmailSet> sets) throws IOException {
+        Result result = read(reader, sets);
+        metrics.recordBatch(result.strings, result.invalidCount, result.uniqueEmails);
+        return result;
+    }
+
+    /**
+     * Records the outcome of a batch whose strings were canonicalized one at a time rather than processed here, such
+     * as the lines of a file.
+     *
+     * @param strings the number of strings in the batch
+     * @param invalidStrings the number of those strings that were not valid emails
+     * @param uniqueEmails the set of unique emails of the batch
+     */
+    void recordBatch(long strings, long invalidStrings, UniqueEmailSet uniqueEmails) {
+        metrics.recordBatch(strings, invalidStrings, uniqueEmails);
+    }
+
+    /**
+     * Reads every string from the reader on the calling thread and passes each valid email to the consumer the
+     * first time it is seen, as soon as it has been read. Unlike process, invalid strings do not stop valid emails
+     * from being deduplicated, since the emails before them have already been passed on. The batch is not split into
+     * parallel chunks, so the emails are passed on in the order they were read.
+     *
+     * @param reader the source of the strings received from the client
+     * @param uniqueEmails the set the emails are deduplicated into, which must tell exactly whether an email is new
+     * @param consumer receives each unique formatted email along with the string it was first formatted from
+     * @return the unique formatted emails, the number of invalid strings and a sample of them
+     * @throws IOException if the reader cannot be read or the consumer fails
+     */
+    Result stream(EmailReader reader, UniqueEmailSet uniqueEmails, EmailConsumer consumer) throws IOException {
+        Result result = new Result(uniqueEmails, sampleSize);
+        EmailCanonicalizer canonicalizer = canonicalizers.get();
+        long[] timings = metrics.isEnabled() ? new long[EmailCanonicalizer.STAGES] : null;
+        String curr;
+        for (long i = 0; (curr = next(reader, i)) != null; i++) {
+            long[] sampled = metrics.isSampled(i) ? timings : null;
+            String email = cache.canonicalize(curr, canonicalizer, sampled);
+            boolean isNew = result.addStreamed(i, curr, email);
+            if (sampled != null) {
+                metrics.recordStages(sampled, System.nanoTime());
+            }
+            if (isNew) {
+                consumer.accept(email, curr);
+            }
+            if (shouldStop(result)) {
+                break;
+            }
+        }
+        metrics.recordBatch(result.strings, result.invalidCount, result.uniqueEmails);
+        return result;
+    }
+
+    private Result read(EmailReader reader, Supplier<? extends UniqueEmailSet> sets) throws IOException {
+        Result result = new Result(sets.get(), sampleSize);
+        EmailCanonicalizer canonicalizer = canonicalizers.get();
+        long[] timings = metrics.isEnabled() ? new long[EmailCanonicalizer.STAGES] : null;
+        String curr = null;
+        for (int i = 0; i < parallelThreshold && (curr = next(reader, i)) != null; i++) {
+            add(result, i, curr, canonicalizer, metrics.isSampled(i) ? timings : null);
+            if (shouldStop(result)) {
+                return result;
+            }
+        }
+        if (parallelThreshold > 0 && curr == null) {
+            return result;
+        }
+
+        /*
+        * Keeps a bounded number of chunks in flight so the body is still only read as fast as it can be processed.
+        */
+        int maxInFlight = 2 * pool.getParallelism();
+        Deque<ForkJoinTask<Result>> inFlight = new ArrayDeque<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        try {
+            List<String> chunk = new ArrayList<>(chunkSize);
+            long index = parallelThreshold;
+            long chunkStart = index;
+            while ((curr = next(reader, index)) != null) {
+                index++;
+                chunk.add(curr);
+                if (chunk.size() == chunkSize) {
+                    if (inFlight.size() == maxInFlight && mergeNext(result, inFlight, stop)) {
+                        return result;
+                    }
+                    inFlight.addLast(pool.submit(task(chunk, chunkStart, result.uniqueEmails.newPart(), stop)));
+                    chunk = new ArrayList<>(chunkSize);
+                    chunkStart = index;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                inFlight.addLast(pool.submit(task(chunk, chunkStart, result.uniqueEmails.newPart(), stop)));
+            }
+            while (!inFlight.isEmpty()) {
+                if (mergeNext(result, inFlight, stop)) {
+                    return result;
+                }
+            }
+            return result;
+        } finally {
+            // only left over if the batch failed to read or merge, whose chunks are of no use any more
+            cancel(inFlight, stop);
+        }
+    }
+
+    /**
+     * Processes a chunk into a part of the batch's set, which is kept in memory until it is merged, so a request
+     * only ever has the one set that can write to disk.
+     */
+    private ForkJoinTask<Result> task(List<String> chunk, long chunkStart, UniqueEmailSet part, AtomicBoolean stop) {
+        return ForkJoinTask.adapt(() -> {
+            EmailCanonicalizer canonicalizer = canonicalizers.get();
+            long[] timings = metrics.isEnabled() ? new long[EmailCanonicalizer.STAGES] : null;
+            Result result = new Result(part, sampleSize);
+            for (int i = 0; i < chunk.size() && !stop.get(); i++) {
+                add(result, chunkStart + i, chunk.get(i), canonicalizer, metrics.isSampled(i) ? timings : null);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Merges the oldest chunk in flight into the result. If that takes the result to stopAfter invalid strings, the
+     * remaining chunks are cancelled.
+     *
+     * @return whether the rest of the batch should not be read
+     */
+    private boolean mergeNext(Result result, Deque<ForkJoinTask<Result>> inFlight, AtomicBoolean stop) {
+        result.merge(inFlight.removeFirst().join());
+        if (!shouldStop(result)) {
+            return false;
+        }
+        cancel(inFlight, stop);
+        return true;
+    }
+
+    /**
+     * Stops every chunk still in flight and waits for the ones already running to notice, so none of a batch's
+     * work outlives it and the request's admission ticket is only released once its chunks are done.
+     */
+    private static void cancel(Deque<ForkJoinTask<Result>> inFlight, AtomicBoolean stop) {
+        stop.set(true);
+        for (ForkJoinTask<Result> task : inFlight) {
+            task.quietlyJoin();
+        }
+        inFlight.clear();
+    }
+
+    private boolean shouldStop(Result result) {
+        result.stopped = stopAfter > 0 && result.invalidCount >= stopAfter;
+        return result.stopped;
+    }
+
+    /**
+     * Validates and formats a single string on the calling thread.
+     *
+     * @param raw a string received from the client
+     * @return the formatted email or null if the string is not a valid email
+     */
+    String canonicalize(String raw) {
+        return cache.canonicalize(raw, canonicalizers.get());
+    }
+
+    /**
+     * Reads the next string, timing the read if the string is sampled.
+     */
+    private String next(EmailReader reader, long index) throws IOException {
+        if (!metrics.isSampled(index)) {
+            return reader.next();
+        }
+        long start = System.nanoTime();
+        String curr = reader.next();
+        metrics.recordParse(System.nanoTime() - start);
+        return curr;
+    }
+
+    /**
+     * Validates, formats and deduplicates a string, timing each stage if timings is not null.
+     */
+    private void add(Result result, long index, String curr, EmailCanonicalizer canonicalizer, long[] timings) {
+        result.add(index, curr, cache.canonicalize(curr, canonicalizer, timings));
+        if (timings != null) {
+            metrics.recordStages(timings, System.nanoTime());
+        }
+    }
+
+    /**
+     * The unique emails and invalid strings found in all or part of a batch. Only the first invalid strings are
+     * kept, cut short if they are long, so a batch of junk cannot use up memory.
+     */
+    static class Result {
+        private static final int MAX_VALUE_LENGTH = 256;
+
+        private final UniqueEmailSet uniqueEmails;
+        private final int sampleSize;
+        private final List<InvalidEmail> invalidSample = new ArrayList<>();
+        private long strings;
+        private long invalidCount;
+        private boolean stopped;
+
+        private Result(UniqueEmailSet uniqueEmails, int sampleSize) {
+            this.uniqueEmails = uniqueEmails;
+            this.sampleSize = sampleSize;
+        }
+
+        /**
+         * @return the unique formatted emails
+         */
+        UniqueEmailSet getUniqueEmails() {
+            return uniqueEmails;
+        }
+
+        /**
+         * @return the number of invalid strings read
+         */
+        long getInvalidCount() {
+            return invalidCount;
+        }
+
+        /**
+         * @return the first invalid strings in the order they were read, with their index in the batch
+         */
+        List<InvalidEmail> getInvalidSample() {
+            return invalidSample;
+        }
+
+        /**
+         * @return whether the rest of the batch was not read because too many strings were invalid
+         */
+        boolean isStopped() {
+            return stopped;
+        }
+
+        private void add(long index, String curr, String email) {
+            strings++;
+            if (email == null) {
+                invalidCount++;
+                if (invalidSample.size() < sampleSize) {
+                    invalidSample.add(new InvalidEmail(index, curr.length() > MAX_VALUE_LENGTH
+                            ? curr.substring(0, MAX_VALUE_LENGTH) + "..." : curr));
+                }
+            } else if (invalidCount == 0) {
+                uniqueEmails.add(email);
+            }
+        }
+
+        /**
+         * Adds a string of a streamed batch, where valid emails are still deduplicated after an invalid string.
+         *
+         * @return whether the string is a valid email that was not seen before
+         */
+        private boolean addStreamed(long index, String curr, String email) {
+            if (email == null) {
+                add(index, curr, null);
+                return false;
+            }
+            strings++;
+            return uniqueEmails.add(email);
+        }
+
+        private void merge(Result other) {
+            strings += other.strings;
+            invalidCount += other.invalidCount;
+            for (int i = 0; i < other.invalidSample.size() && invalidSample.size() < sampleSize; i++) {
+                invalidSample.add(other.invalidSample.get(i));
+            }
+            if (invalidCount == 0) {
+                uniqueEmails.merge(other.uniqueEmails);
+            }
+        }
+    }
+
+    /**
+     * Receives the unique emails of a streamed batch.
+     */
+    @FunctionalInterface
+    interface EmailConsumer {
+        /**
+         * @param email a formatted email seen for the first time in the batch
+         * @param raw the string the email was formatted from
+         * @throws IOException if the email cannot be passed on
+         */
+        void accept(String email, String raw) throws IOException;
+    }
+}
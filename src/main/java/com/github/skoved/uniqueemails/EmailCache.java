@@ -0,0 +1,123 @@
+package com.github.skoved.uniqueemails;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.util.Arrays;
+import java.util.Collections;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the formatted email of the strings received most often, so the same string does not have to be
+ * validated and formatted again every time it is received. Uses a Caffeine cache, which decides what to keep
+ * with Window TinyLFU: a string is only kept over an older one if it has been seen more often recently. A
+ * maximum size of 0 turns the cache off. The size, hits, misses and evictions are published to Micrometer under
+ * the name email.cache.
+ * <p>
+ * Inserting into the cache costs more than formatting most emails, so a string is only cached the second time it
+ * is seen. A table of the hashes of recently seen strings, one int per slot, lets a batch of strings that are
+ * never repeated pay for little more than a lookup. Strings longer than MAX_LENGTH are never cached, since no
+ * valid email is that long and the cache is bounded by its number of strings rather than their size.
+ */
+@Component
+public class EmailCache implements MeterBinder {
+    private static final String INVALID = new String("invalid");
+    private static final int MAX_LENGTH = 254;
+
+    private final Cache<String, String> cache;
+    private final int[] seen;
+
+    /**
+     * Creates a new EmailCache.
+     *
+     * @param maxSize the maximum number of strings to remember, or 0 to turn the cache off
+     */
+    public EmailCache(@Value("${email.cache.max-size:100000}") long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("email.cache.max-size must not be negative.");
+        }
+        cache = maxSize == 0 ? null : Caffeine.newBuilder().maximumSize(maxSize).recordStats().build();
+        // races between threads only make a string wait one more time before it is cached
+        seen = new int[maxSize == 0 ? 0 : Integer.highestOneBit((int) Math.min(maxSize, 1 << 20) * 2 - 1)];
+    }
+
+    /**
+     * Returns the formatted email of a string from the cache, or from the canonicalizer if the string is not
+     * in the cache.
+     *
+     * @param raw a string received from the client
+     * @param canonicalizer the canonicalizer of the calling thread
+     * @return the formatted email or null if the string is not a valid email
+     */
+    String canonicalize(String raw, EmailCanonicalizer canonicalizer) {
+        return canonicalize(raw, canonicalizer, null);
+    }
+
+    /**
+     * Returns the formatted email of a string from the cache, or from the canonicalizer if the string is not
+     * in the cache. The canonicalizer records the time each of its stages finished, so the timings are all 0
+     * when the string was found in the cache.
+     *
+     * @param raw a string received from the client
+     * @param canonicalizer the canonicalizer of the calling thread
+     * @param timings the array the canonicalizer records its timings in, or null to not record them
+     * @return the formatted email or null if the string is not a valid email
+     */
+    String canonicalize(String raw, EmailCanonicalizer canonicalizer, long[] timings) {
+        if (cache == null || raw == null || raw.length() > MAX_LENGTH) {
+            return canonicalizer.canonicalize(raw, timings);
+        }
+        String email = cache.getIfPresent(raw);
+        if (email == null) {
+            email = canonicalizer.canonicalize(raw, timings);
+            if (seenBefore(raw)) {
+                cache.put(raw, email == null ? INVALID : email);
+            }
+            return email;
+        }
+        if (timings != null) {
+            Arrays.fill(timings, 0, EmailCanonicalizer.STAGES, 0);
+        }
+        return email == INVALID ? null : email;
+    }
+
+    /**
+     * Records that a string has been seen.
+     *
+     * @return whether the string was probably seen recently
+     */
+    private boolean seenBefore(String raw) {
+        int hash = raw.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (seen.length - 1);
+        if (seen[slot] == hash) {
+            return true;
+        }
+        seen[slot] = hash;
+        return false;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (cache != null) {
+            new CaffeineCacheMetrics(cache, "email.cache", Collections.emptyList()).bindTo(registry);
+        }
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the cache
+     */
+    CacheStats stats() {
+        return cache == null ? CacheStats.empty() : cache.stats();
+    }
+
+    /**
+     * @return the number of strings in the cache
+     */
+    long size() {
+        return cache == null ? 0 : cache.estimatedSize();
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.skoved.uniqueemails;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * The response of the cache statistics endpoint of EmailController.
+ */
+public class EmailCacheStats {
+    private final long size;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final double hitRate;
+
+    /**
+     * Creates a new EmailCacheStats from the current state of an EmailCache.
+     *
+     * @param cache the cache to report on
+     */
+    EmailCacheStats(EmailCache cache) {
+        CacheStats stats = cache.stats();
+        size = cache.size();
+        hits = stats.hitCount();
+        misses = stats.missCount();
+        evictions = stats.evictionCount();
+        hitRate = stats.hitRate();
+    }
+
+    /**
+     * @return the number of strings in the cache
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of strings found in the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of strings that were not in the cache
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of strings removed from the cache to make room for others
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the fraction of strings found in the cache, 1 if there have been no lookups
+     */
+    public double getHitRate() {
+        return hitRate;
+    }
+}
@@ -0,0 +1,501 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Validates a string and converts it to the form used to check emails for uniqueness. Without DomainRules it
+ * produces the same result as running EmailController's removeComments, unwrap and formatEmail one after another,
+ * but works on index ranges of a single reusable buffer instead of creating substrings and running regular
+ * expressions for every email. The email is validated straight from the buffer, so the formatted email is the only
+ * string created. Emails whose domain has a rule are formatted by that rule instead, unless they have a bangified
+ * host route or a % escaped mail route.
+ * <p>
+ * An EmailCanonicalizer keeps state between calls and is not thread safe. Create one per thread.
+ */
+class EmailCanonicalizer {
+    /*
+    * indexes of the times recorded by canonicalize when it is given an array to record them in
+    */
+    static final int STARTED = 0;
+    static final int COMMENTS_REMOVED = 1;
+    static final int VALIDATED = 2;
+    static final int FORMATTED = 3;
+    static final int STAGES = 4;
+
+    private static final int INITIAL_BUFFER = 128;
+    /*
+    * the largest buffer kept between calls, enough for strings of about 2000 chars. A buffer grown for a longer
+    * string is dropped after it, so one huge string does not pin its buffer on every thread that saw it.
+    */
+    private static final int MAX_RETAINED_BUFFER = 4096;
+
+    private final AddressValidator addressValidator;
+    private final DomainRules rules;
+    private char[] buf = new char[INITIAL_BUFFER];
+
+    /**
+     * Creates a new EmailCanonicalizer that formats every email the way EmailController.formatEmail does.
+     *
+     * @param addressValidator the validator used to check the email once comments and {@literal <}
+     *                         {@literal >} have been removed
+     */
+    EmailCanonicalizer(AddressValidator addressValidator) {
+        this(addressValidator, DomainRules.NONE);
+    }
+
+    /**
+     * Creates a new EmailCanonicalizer.
+     *
+     * @param addressValidator the validator used to check the email once comments and {@literal <}
+     *                         {@literal >} have been removed
+     * @param rules the rules used to format the emails of each domain
+     */
+    EmailCanonicalizer(AddressValidator addressValidator, DomainRules rules) {
+        this.addressValidator = addressValidator;
+        this.rules = rules;
+    }
+
+    /**
+     * Validates a string and returns the email it will be delivered to.
+     *
+     * @param raw a string received from the client
+     * @return the formatted email or null if the string is not a valid email
+     */
+    String canonicalize(String raw) {
+        return canonicalize(raw, null);
+    }
+
+    /**
+     * Validates a string and returns the email it will be delivered to, recording the System.nanoTime at which
+     * each stage finished. The times of stages that were not reached are set to 0.
+     *
+     * @param raw a string received from the client
+     * @param timings an array of at least STAGES longs that receives the times, or null to not record them
+     * @return the formatted email or null if the string is not a valid email
+     */
+    String canonicalize(String raw, long[] timings) {
+        String email = process(raw, timings);
+        if (buf.length > MAX_RETAINED_BUFFER) {
+            buf = new char[INITIAL_BUFFER];
+        }
+        return email;
+    }
+
+    private String process(String raw, long[] timings) {
+        if (timings != null) {
+            Arrays.fill(timings, 0, STAGES, 0);
+            timings[STARTED] = System.nanoTime();
+        }
+        if (raw == null || raw.isEmpty()) {
+            return null;
+        }
+        int length = raw.length();
+        if (buf.length < 2 * length + 1) {
+            buf = new char[2 * length + 1];
+        }
+
+        /*
+        * finds the last @ symbol that is not in "s or a comment. The email is split in two parts there.
+        */
+        boolean inComment = false;
+        boolean inQuotes = false;
+        int at = -1;
+        for (int i = 0; i < length; i++) {
+            char curr = raw.charAt(i);
+            if (inQuotes && curr != '\"') {
+                continue;
+            } else if (inComment && curr != ')') {
+                continue;
+            }
+
+            switch (curr) {
+                case '(':
+                    inComment = true;
+                    break;
+                case ')':
+                    inComment = false;
+                    break;
+                case '\"':
+                    inQuotes = !inQuotes;
+                    break;
+                case '@':
+                    at = i;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (inComment || inQuotes || at == -1) {
+            return null;
+        }
+
+        int localStart = stripLeadingComments(raw, 0, at);
+        int localEnd = localStart == -1 ? -1 : stripTrailingComments(raw, localStart, at);
+        int domainStart = stripLeadingComments(raw, at + 1, length);
+        int domainEnd = domainStart == -1 ? -1 : stripTrailingComments(raw, domainStart, length);
+        if (localEnd == -1 || domainEnd == -1) {
+            return null;
+        }
+
+        raw.getChars(localStart, localEnd, buf, 0);
+        int end = localEnd - localStart;
+        buf[end++] = '@';
+        raw.getChars(domainStart, domainEnd, buf, end);
+        end += domainEnd - domainStart;
+
+        /*
+        * extracts the part of the email enclosed by < > if both of those characters occur outside of "s
+        */
+        int begin = -1;
+        int close = -1;
+        inQuotes = false;
+        for (int i = 0; i < end; i++) {
+            char curr = buf[i];
+            if (inQuotes && curr != '\"') {
+                continue;
+            }
+            if (curr == '\"') {
+                inQuotes = !inQuotes;
+            } else if (curr == '<') {
+                begin = i + 1;
+            } else if (curr == '>') {
+                close = i;
+            }
+        }
+        int start = 0;
+        if (begin != -1 && close != -1) {
+            if (begin > close) {
+                return null;
+            }
+            start = begin;
+            end = close;
+        }
+
+        if (timings != null) {
+            timings[COMMENTS_REMOVED] = System.nanoTime();
+        }
+        //EmailValidator in Commons-Validator in v1.6 has a know issue of validating emails with an opening
+        if (start == end || buf[start] == ' ' || buf[end - 1] == ' '
+                || !addressValidator.isValid(buf, start, end)) {
+            return null;
+        }
+        if (timings != null) {
+            timings[VALIDATED] = System.nanoTime();
+        }
+        String email = format(start, end);
+        if (timings != null) {
+            timings[FORMATTED] = System.nanoTime();
+        }
+        return email;
+    }
+
+    /**
+     * Removes comments from the beginning of one part of an email.
+     *
+     * @param email the whole string being processed
+     * @param start the index the part begins at
+     * @param end the index the part ends at
+     * @return the new beginning of the part or -1 if its comments are not well formed
+     */
+    private static int stripLeadingComments(String email, int start, int end) {
+        int parenDepth = 0;
+        boolean inQuotes = false;
+        for (int i = 0; i < end - start && email.charAt(start) == '('; i++) {
+            char curr = email.charAt(start + i);
+            if (inQuotes && curr != '\"') {
+                continue;
+            }
+            switch (curr) {
+                case '(':
+                    parenDepth++;
+                    break;
+                case ')':
+                    parenDepth--;
+                    if (parenDepth < 0) {
+                        return -1;
+                    }
+                    if (parenDepth == 0) {
+                        start += i + 1;
+                        i = 0;
+                    }
+                    break;
+                case '\"':
+                    inQuotes = !inQuotes;
+                    break;
+                case '\\':
+                    i++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return parenDepth != 0 || inQuotes ? -1 : start;
+    }
+
+    /**
+     * Removes comments from the end of one part of an email.
+     *
+     * @param email the whole string being processed
+     * @param start the index the part begins at
+     * @param end the index the part ends at
+     * @return the new end of the part or -1 if its comments are not well formed
+     */
+    private static int stripTrailingComments(String email, int start, int end) {
+        int parenDepth = 0;
+        boolean inQuotes = false;
+        for (int i = end - start - 1; i > 0 && email.charAt(end - 1) == ')'; i--) {
+            char curr = email.charAt(start + i);
+            if (inQuotes && curr != '\"') {
+                continue;
+            }
+            switch (curr) {
+                case ')':
+                    parenDepth++;
+                    break;
+                case '(':
+                    if (email.charAt(start + i - 1) == '\\') {
+                        i--;
+                        continue;
+                    }
+                    parenDepth--;
+                    if (parenDepth < 0) {
+                        return -1;
+                    }
+                    if (parenDepth == 0) {
+                        end = start + i;
+                        i = end - start - 1;
+                    }
+                    break;
+                case '\"':
+                    inQuotes = !inQuotes;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return parenDepth != 0 || inQuotes ? -1 : end;
+    }
+
+    /**
+     * Formats the valid email held in buf between start and end by the rule of its domain, or the same way
+     * EmailController.formatEmail does if it has none. Each step rewrites the buffer in place since none of them
+     * make the email longer.
+     *
+     * @param start the index the email begins at
+     * @param end the index the email ends at
+     * @return the formatted email or null if the email has a % escaped mail route that cannot be read
+     */
+    private String format(int start, int end) {
+        // removes everything from a ( to the next )
+        int write = start;
+        for (int read = start; read < end; read++) {
+            if (buf[read] == '(') {
+                int close = indexOf(')', read + 1, end);
+                if (close != -1) {
+                    read = close;
+                    continue;
+                }
+            }
+            buf[write++] = buf[read];
+        }
+        end = write;
+
+        if (!rules.isEmpty()) {
+            int at = lastIndexOf('@', start, end);
+            if (at != -1 && indexOf('!', start, at) == -1 && indexOf('%', start, at) == -1) {
+                DomainRules.Rule rule = rules.find(buf, at + 1, end);
+                if (rule != null && !rule.isLegacy()) {
+                    return format(rule, start, at, end);
+                }
+                if (rule != null) {
+                    end = replaceDomain(rule.getDomain(), at, end);
+                }
+            }
+        }
+
+        // removes all .s
+        write = start;
+        for (int read = start; read < end; read++) {
+            if (buf[read] != '.') {
+                buf[write++] = buf[read];
+            }
+        }
+        end = write;
+
+        // removes everything from a + to the last @ that comes before any whitespace
+        write = start;
+        for (int read = start; read < end; read++) {
+            if (buf[read] == '+') {
+                int at = -1;
+                for (int i = read + 1; i < end && !isWhitespace(buf[i]); i++) {
+                    if (buf[i] == '@') {
+                        at = i;
+                    }
+                }
+                if (at != -1) {
+                    read = at;
+                }
+            }
+            buf[write++] = buf[read];
+        }
+        end = write;
+
+        int at = indexOf('@', start, end);
+        int localEnd = at == -1 ? end : at;
+        if (indexOf('!', start, end) != -1) {
+            /*
+            * [destination uucp domain]![email account name]@[route domain] becomes
+            * [email account name]@[destination uucp domain] when the last ! outside of "s is in the local part
+            */
+            int bang = -1;
+            boolean inQuotes = false;
+            for (int i = start; i < localEnd; i++) {
+                char curr = buf[i];
+                if (inQuotes && curr != '\"') {
+                    continue;
+                } else if (curr == '!') {
+                    bang = i;
+                } else if (curr == '\"') {
+                    inQuotes = !inQuotes;
+                }
+            }
+            if (bang == -1) {
+                return new String(buf, start, end - start);
+            }
+            int length = localEnd - bang - 1;
+            System.arraycopy(buf, bang + 1, buf, end, length);
+            buf[end + length] = '@';
+            System.arraycopy(buf, start, buf, end + length + 1, bang - start);
+            return new String(buf, end, localEnd - start);
+        }
+
+        int percent = indexOf('%', start, localEnd);
+        if (percent != -1) {
+            /*
+            * [email account name]%[domain of email account]@[routed email server] becomes
+            * [email account name]@[domain of email account]
+            */
+            int domainEnd = indexOf('%', percent + 1, localEnd);
+            if (domainEnd == -1) {
+                domainEnd = localEnd;
+            }
+            int i = percent + 1;
+            while (i < localEnd && buf[i] == '%') {
+                i++;
+            }
+            if (i == localEnd) {
+                return null;
+            }
+            buf[percent] = '@';
+            return new String(buf, start, domainEnd - start);
+        } else if (indexOf('%', start, end) != -1) {
+            return null;
+        }
+
+        return new String(buf, start, end - start);
+    }
+
+    /**
+     * Formats the valid email held in buf by the rule of its domain.
+     *
+     * @param rule the rule of the domain
+     * @param start the index the email begins at
+     * @param at the index of the @ before the domain
+     * @param end the index the email ends at
+     * @return the formatted email
+     */
+    private String format(DomainRules.Rule rule, int start, int at, int end) {
+        int write = start;
+        boolean ascii = true;
+        for (int read = start; read < at; read++) {
+            char curr = buf[read];
+            if (write > start && rule.isSeparator(curr)) {
+                break;
+            }
+            if (curr != '.' || !rule.removesDots()) {
+                buf[write++] = curr;
+                ascii &= curr < 0x80;
+            }
+        }
+        int localEnd = write;
+        buf[write++] = '@';
+
+        char[] domain = rule.getDomain();
+        if (domain == null) {
+            for (int read = at + 1; read < end; read++) {
+                char curr = buf[read];
+                buf[write++] = curr;
+                ascii &= curr < 0x80;
+            }
+        } else {
+            if (buf.length < write + domain.length) {
+                buf = Arrays.copyOf(buf, write + domain.length);
+            }
+            System.arraycopy(domain, 0, buf, write, domain.length);
+            write += domain.length;
+        }
+
+        /*
+        * both parts are folded the way String.toLowerCase(Locale.ROOT) does, in place for ASCII. Other chars can
+        * fold to a different number of chars or depend on the chars around them, so they are left to String.
+        */
+        if (!ascii) {
+            String local = new String(buf, start, localEnd - start);
+            String rest = new String(buf, localEnd + 1, write - localEnd - 1);
+            return (rule.lowerCases() ? local.toLowerCase(Locale.ROOT) : local) + '@'
+                    + (domain == null ? rest.toLowerCase(Locale.ROOT) : rest);
+        }
+        if (rule.lowerCases()) {
+            lowerCaseAscii(start, localEnd);
+        }
+        if (domain == null) {
+            lowerCaseAscii(localEnd + 1, write);
+        }
+        return new String(buf, start, write - start);
+    }
+
+    private void lowerCaseAscii(int from, int to) {
+        for (int i = from; i < to; i++) {
+            char curr = buf[i];
+            if (curr >= 'A' && curr <= 'Z') {
+                buf[i] = (char) (curr + ('a' - 'A'));
+            }
+        }
+    }
+
+    /**
+     * Replaces the domain of the valid email held in buf after the @ at index at.
+     *
+     * @return the index the email ends at
+     */
+    private int replaceDomain(char[] domain, int at, int end) {
+        if (buf.length < at + 1 + domain.length) {
+            buf = Arrays.copyOf(buf, at + 1 + domain.length);
+        }
+        System.arraycopy(domain, 0, buf, at + 1, domain.length);
+        return at + 1 + domain.length;
+    }
+
+    private int lastIndexOf(char c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Creates the beans of the email pipeline that are chosen through configuration.
+ */
+@Configuration
+public class EmailConfiguration {
+
+    /**
+     * Creates the validator used to check every email.
+     *
+     * @param validator scanning to use ScanningAddressValidator or commons to use commons-validator directly
+     * @param crossCheck whether to run both validators on every email, using the commons-validator result and
+     *                   logging every email they disagree on
+     * @return the validator
+     */
+    @Bean
+    AddressValidator addressValidator(@Value("${email.validator:scanning}") String validator,
+                                      @Value("${email.validator.cross-check:false}") boolean crossCheck) {
+        AddressValidator commons = new CommonsAddressValidator();
+        if (crossCheck) {
+            return new CrossCheckingAddressValidator(commons, new ScanningAddressValidator(commons));
+        }
+        switch (validator) {
+            case "scanning":
+                return new ScanningAddressValidator(commons);
+            case "commons":
+                return commons;
+            default:
+                throw new IllegalArgumentException("email.validator must be scanning or commons.");
+        }
+    }
+
+    /**
+     * Compiles the rules used to format the emails of each domain. The entries in the file come first, followed by
+     * the ones in the setting, and a domain may only have one entry between them.
+     *
+     * @param domains entries separated by ;s
+     * @param file a file with one entry per line, or empty for none
+     * @return the compiled rules, DomainRules.NONE if there are no entries
+     */
+    @Bean
+    DomainRules domainRules(@Value("${email.rules.domains:}") String domains,
+                            @Value("${email.rules.file:}") String file) {
+        String table = domains;
+        if (!file.isEmpty()) {
+            try {
+                table = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8) + "\n" + domains;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the domain rules in " + file + ".", e);
+            }
+        }
+        return DomainRules.parse(table);
+    }
+}
@@ -1,77 +1,375 @@
 package com.github.skoved.uniqueemails;
 
-import javax.validation.Valid;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import org.apache.commons.validator.routines.EmailValidator;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 /**
  * Creates an endpoint at http://[your domain]:8080/email/validate. The endpoint calculates
  * the number of unique emails there are in a list of strings. It does so by using the
  * EmailValidator found in Apache commons-validator in tandem with custom string processing
- * algorithms.
+ * algorithms. Requests are processed by an EmailBatchProcessor using EmailCanonicalizer, which produces the same
+ * result as removeComments, unwrap and formatEmail applied one after another without their intermediate strings.
  */
 @RestController
 @RequestMapping("/email")
 public class EmailController {
-    private final EmailValidator emailValidator;
+    private static final Pattern COMMENT = Pattern.compile("\\([\\s\\S]*?\\)");
+    private static final Pattern PLUS_TAG = Pattern.compile("\\+\\S*@");
+    private static final String NDJSON = "application/x-ndjson";
+    private static final long FLUSH_NANOS = 100000000;
+
+    private final ObjectMapper objectMapper;
+    private final EmailBatchProcessor batchProcessor;
+    private final UniqueEmailSets uniqueEmailSets;
+    private final EmailSessions sessions;
+    private final EmailCache cache;
+    private final EmailFileProcessor fileProcessor;
+    private final KnownEmails knownEmails;
+    private final EmailAdmission admission;
+    private final EmailRequests requests;
+    private final int defaultPrecision;
 
     /**
-     * Creates a new EmailController and requests an instance of the EmailValidator
+     * Creates a new EmailController.
+     *
+     * @param objectMapper the application's ObjectMapper, used to write the streamed unique emails
+     * @param batchProcessor validates and deduplicates the emails of each request
+     * @param uniqueEmailSets creates the sets used to count unique emails exactly
+     * @param sessions the sessions used to count unique emails across several requests
+     * @param cache the cache of formatted emails, reported on by the cache statistics endpoint
+     * @param fileProcessor counts the unique emails in files on the server
+     * @param knownEmails the corpus of every email ingested, used to find the new emails of a batch
+     * @param admission admits the requests whose results are streamed
+     * @param requests admits, reads and processes the batches of every other request
+     * @param defaultPrecision the HyperLogLog precision used by the approximate endpoint when none is requested
      */
-    public EmailController() {
-        emailValidator = EmailValidator.getInstance(false, false);
+    public EmailController(ObjectMapper objectMapper, EmailBatchProcessor batchProcessor,
+                           UniqueEmailSets uniqueEmailSets, EmailSessions sessions,
+                           EmailCache cache, EmailFileProcessor fileProcessor, KnownEmails knownEmails,
+                           EmailAdmission admission, EmailRequests requests,
+                           @Value("${email.approximate.precision:12}") int defaultPrecision) {
+        this.objectMapper = objectMapper;
+        this.batchProcessor = batchProcessor;
+        this.uniqueEmailSets = uniqueEmailSets;
+        this.sessions = sessions;
+        this.cache = cache;
+        this.fileProcessor = fileProcessor;
+        this.knownEmails = knownEmails;
+        this.admission = admission;
+        this.requests = requests;
+        this.defaultPrecision = defaultPrecision;
     }
 
     /**
      * Listens for HTTP POST requests to [your domain]:8080/email/validate. Processes each string
      * and determines whether or not the string is a valid email address. Then determines the number of unique emails
-     * using Gmail account matching.
+     * using Gmail account matching. The body is read as a stream, so each string is validated and deduplicated as
+     * it is parsed and the list itself is never held in memory. The body can also be sent as text/plain with one
+     * email per line, and either format can be compressed with Content-Encoding: gzip. Large bodies are processed
+     * by EmailExecutor's pool of threads instead of the request thread. When email.dedupe.memory-budget is set
+     * the unique emails are written to disk once they go over the budget. The result is remembered by
+     * BatchResultCache under the hash of the body, which is returned as the ETag, so a client that sends the ETag
+     * in If-None-Match with an empty body, Content-Length: 0, is answered without uploading the batch again. A
+     * request with a body is always processed, and If-None-Match is ignored.
      *
-     * @param emails a list of strings received from the client.
-     * @return an integer representing the number of unique and valid emails received from the client.
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @return an integer representing the number of unique and valid emails received from the client, along with
+     * the ETag of the body.
+     * @throws IOException if the request body cannot be read
      */
     @PostMapping("/validate")
-    int validateEmails(@Valid @RequestBody List<String> emails) {
-        if (emails == null) {
+    CompletableFuture<ResponseEntity<Integer>> validateEmails(InputStream body, @RequestHeader HttpHeaders headers)
+            throws IOException {
+        return requests.validate(body, headers);
+    }
+
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/validate/unique. Formats every string of a batch the
+     * same way as validateEmails, but streams the unique emails back as newline delimited JSON instead of counting
+     * them. Each email is written as {"email":...} as soon as it is first read, with the string it was formatted
+     * from as "raw" if raw is true, so the response is sent in chunks while the body is still being read. Only the
+     * unique emails are kept in memory, never the response. The emails are read in order on one thread and always
+     * deduplicated in memory, even when email.dedupe.memory-budget is set, since a set written to disk cannot tell
+     * which emails are new. The last line is a StreamedCount.
+     * <p>
+     * Since the emails before an invalid string have already been sent, invalid strings are counted in the last
+     * line instead of failing the request. Errors found after the response has started, such as a body that is not
+     * a JSON array or goes over email.limits.max-entries, end the stream with the error in the last line.
+     *
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @param raw whether to send each unique email with the string it was first formatted from
+     * @return the stream of unique emails, once the request has been admitted
+     */
+    @PostMapping(value = "/validate/unique", produces = NDJSON)
+    CompletableFuture<ResponseEntity<StreamingResponseBody>> streamUniqueEmails(
+            InputStream body, @RequestHeader HttpHeaders headers, @RequestParam(defaultValue = "false") boolean raw) {
+        if (body == null) {
             throw new IllegalArgumentException("Please provide a list of valid emails.");
         }
+        return admission.admit(headers.getContentLength()).thenApply(ticket -> {
+            StreamingResponseBody stream = out -> {
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                    // each value ends its own line instead of being followed by a space
+                    generator.setRootValueSeparator(null);
+                    writeUniqueEmails(body, headers, ticket, raw, generator);
+                } finally {
+                    ticket.close();
+                }
+            };
+            return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(stream);
+        });
+    }
 
-        List<String> invalidEmails = new ArrayList<>();
-        for (int i = 0; i < emails.size(); i++) {
-            String curr = emails.get(i);
-            if (curr.equals("")) {
-                invalidEmails.add(curr);
-                continue;
-            }
-            String email = removeComments(curr);
-            email = unwrap(email);
-            //EmailValidator in Commons-Validator in v1.6 has a know issue of validating emails with an opening
-            if (!emailValidator.isValid(email) || email.charAt(0) == ' '
-                    || email.charAt(email.length() - 1) == ' ') {
-                invalidEmails.add(curr);
-            } else {
-                emails.remove(i);
-                emails.add(i, email);
-            }
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/validate/approximate. Validates the emails the same
+     * way as validateEmails, but estimates the number of unique emails with a HyperLogLog instead of keeping every
+     * email, so memory stays fixed at 2^precision bytes per thread however many emails are received.
+     *
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @param precision the number of hash bits the HyperLogLog uses to pick a bucket, between 4 and 18. Higher
+     *                  precision uses more memory and gives a smaller error.
+     * @return the estimated number of unique and valid emails along with its error bounds
+     * @throws IOException if the request body cannot be read
+     */
+    @PostMapping("/validate/approximate")
+    CompletableFuture<ApproximateCount> approximateUniqueEmails(InputStream body, @RequestHeader HttpHeaders headers,
+                                                                @RequestParam(required = false) Integer precision)
+            throws IOException {
+        int p = precision(precision == null ? defaultPrecision : precision);
+        return requests.execute(headers, ticket -> new ApproximateCount(
+                (HyperLogLog) requests.process(body, headers, ticket, () -> new HyperLogLog(p))));
+    }
+
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/state. Validates the emails the same way as
+     * validateEmails, but returns the serialized set of unique emails instead of its size, so the states returned
+     * by several instances of the service for parts of a list can be merged by mergeStates into a count for the
+     * whole list. The state holds sorted fingerprints of the emails, or a HyperLogLog if a precision is given.
+     *
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @param precision the precision of the HyperLogLog for an approximate state, or null for an exact state
+     * @return the dedupe state, see DedupeStates for its format
+     * @throws IOException if the request body cannot be read
+     */
+    @PostMapping(value = "/state", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    CompletableFuture<byte[]> dedupeState(InputStream body, @RequestHeader HttpHeaders headers,
+                                          @RequestParam(required = false) Integer precision) throws IOException {
+        Supplier<? extends UniqueEmailSet> sets;
+        if (precision == null) {
+            sets = uniqueEmailSets::newStateSet;
+        } else {
+            int p = precision(precision);
+            sets = () -> new HyperLogLog(p);
         }
+        return requests.execute(headers, ticket -> {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            DedupeStates.write(requests.process(body, headers, ticket, sets), state);
+            return state.toByteArray();
+        });
+    }
 
-        if (!invalidEmails.isEmpty()) {
-            throw new IllegalArgumentException("The email(s) " + invalidEmails + " is/are invalid.");
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/state/merge. Merges the dedupe states returned by
+     * dedupeState, concatenated one after another in the request body, and counts the unique emails across all of
+     * them. The states must either all be exact or all be approximate with the same precision.
+     *
+     * @param body the request body, one or more dedupe states
+     * @param headers the request headers
+     * @return the number of states merged and the number of unique emails across them
+     * @throws IOException if the request body cannot be read
+     */
+    @PostMapping("/state/merge")
+    CompletableFuture<MergedCount> mergeStates(InputStream body, @RequestHeader HttpHeaders headers)
+            throws IOException {
+        if (body == null) {
+            throw new IllegalArgumentException("Please provide at least one dedupe state.");
         }
+        return requests.execute(headers, ticket -> new MergedCount(DedupeStates.merge(ticket.limit(body))));
+    }
+
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/files. Counts the unique emails in a file on the
+     * server with one email per line, without sending the file over HTTP. Invalid lines are counted instead of
+     * failing the request. Files are only read from the directory set by email.files.directory.
+     *
+     * @param path the path of the file, relative to email.files.directory
+     * @param report whether to list the first invalid lines and their byte offsets
+     * @return the number of unique valid emails, lines and invalid lines in the file
+     * @throws IOException if the configured directory cannot be read
+     */
+    @PostMapping("/files")
+    CompletableFuture<FileCount> countFile(@RequestParam String path,
+                                           @RequestParam(defaultValue = "false") boolean report) throws IOException {
+        Path file = fileProcessor.resolve(path);
+        // a file is not limited like a request body, and its unknown length keeps it off the request thread
+        return requests.execute(-1, ticket -> fileProcessor.process(file, report));
+    }
 
-        Set<String> uniqueEmails = new HashSet<>();
-        for (String email : emails) {
-            email = formatEmail(email);
-            uniqueEmails.add(email);
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/known. Formats every string of a batch the same way
+     * as validateEmails and checks it against the corpus of every email ingested so far, adding the new ones unless
+     * ingest is false. Invalid strings are counted instead of failing the request.
+     *
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @param ingest whether to add the new emails to the corpus
+     * @return the number of new, known and invalid strings and the index in the batch of the first new emails
+     * @throws IOException if the request body cannot be read
+     */
+    @PostMapping("/known")
+    CompletableFuture<KnownCount> checkKnown(InputStream body, @RequestHeader HttpHeaders headers,
+                                             @RequestParam(defaultValue = "true") boolean ingest) throws IOException {
+        // fails before reading the body if the corpus is turned off
+        knownEmails.checkEnabled();
+        if (body == null) {
+            throw new IllegalArgumentException("Please provide a list of valid emails.");
+        }
+        return requests.execute(headers, ticket -> {
+            try (EmailReader reader = requests.reader(ticket.limit(body), headers.getContentType())) {
+                return knownEmails.check(ticket.limit(reader), batchProcessor, ingest);
+            }
+        });
+    }
+
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/sessions. Opens a session that batches of emails
+     * can be appended to over many requests.
+     *
+     * @return the id of the new session
+     */
+    @PostMapping("/sessions")
+    @ResponseStatus(HttpStatus.CREATED)
+    SessionCount createSession() {
+        return new SessionCount(sessions.create(), 0);
+    }
+
+    /**
+     * Listens for HTTP POST requests to [your domain]:8080/email/sessions/{id}. Validates a batch of emails the same
+     * way as validateEmails and adds the unique ones to the session. If any email is invalid nothing is added.
+     *
+     * @param id the id of the session
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @return the number of unique emails the session has received so far
+     * @throws IOException if the request body cannot be read
+     */
+    @PostMapping("/sessions/{id}")
+    CompletableFuture<SessionCount> appendToSession(@PathVariable String id, InputStream body,
+                                                    @RequestHeader HttpHeaders headers) throws IOException {
+        // fails before reading the body if the session does not exist
+        sessions.count(id);
+        return requests.execute(headers, ticket -> new SessionCount(id,
+                sessions.append(id, requests.process(body, headers, ticket, uniqueEmailSets::newExactSet))));
+    }
+
+    /**
+     * Listens for HTTP GET requests to [your domain]:8080/email/sessions/{id}.
+     *
+     * @param id the id of the session
+     * @return the number of unique emails the session has received so far
+     */
+    @GetMapping("/sessions/{id}")
+    SessionCount countSession(@PathVariable String id) {
+        return new SessionCount(id, sessions.count(id));
+    }
+
+    /**
+     * Listens for HTTP DELETE requests to [your domain]:8080/email/sessions/{id}. Closes the session.
+     *
+     * @param id the id of the session
+     * @return the number of unique emails the session received
+     */
+    @DeleteMapping("/sessions/{id}")
+    SessionCount closeSession(@PathVariable String id) {
+        return new SessionCount(id, sessions.close(id));
+    }
+
+    /**
+     * Listens for HTTP GET requests to [your domain]:8080/email/cache.
+     *
+     * @return the size, hit, miss and eviction counts of the cache of formatted emails
+     */
+    @GetMapping("/cache")
+    EmailCacheStats cacheStats() {
+        return new EmailCacheStats(cache);
+    }
+
+    /**
+     * @param precision a requested HyperLogLog precision
+     * @return the precision
+     * @throws IllegalArgumentException if the precision is out of range
+     */
+    private static int precision(int precision) {
+        if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException("The precision must be between " + HyperLogLog.MIN_PRECISION
+                    + " and " + HyperLogLog.MAX_PRECISION + ".");
+        }
+        return precision;
+    }
+
+    /**
+     * Writes the unique emails of a request body one per line, flushing them to the client once FLUSH_NANOS have
+     * passed since the last flush, followed by a StreamedCount.
+     *
+     * @throws IOException if the request body cannot be read or the response cannot be written
+     */
+    private void writeUniqueEmails(InputStream body, HttpHeaders headers, EmailAdmission.Ticket ticket, boolean raw,
+                                   JsonGenerator generator) throws IOException {
+        long[] written = new long[2];
+        written[1] = System.nanoTime();
+        StreamedCount count;
+        try (EmailReader reader = requests.reader(ticket.limit(body), headers.getContentType())) {
+            EmailBatchProcessor.Result result = batchProcessor.stream(ticket.limit(reader),
+                    uniqueEmailSets.newExactSet(), (email, curr) -> {
+                        generator.writeStartObject();
+                        generator.writeStringField("email", email);
+                        if (raw) {
+                            generator.writeStringField("raw", curr);
+                        }
+                        generator.writeEndObject();
+                        generator.writeRaw('\n');
+                        written[0]++;
+                        long now = System.nanoTime();
+                        if (now - written[1] >= FLUSH_NANOS) {
+                            generator.flush();
+                            written[1] = now;
+                        }
+                    });
+            count = new StreamedCount(written[0], result.getInvalidCount(), result.isStopped(),
+                    result.getInvalidSample(), null);
+        } catch (IllegalArgumentException | RequestTooLargeException | TooManyRequestsException e) {
+            // the status has already been sent, so the error can only be reported in the stream
+            count = new StreamedCount(written[0], 0, false, Collections.emptyList(), e.getMessage());
         }
-        return uniqueEmails.size();
+        generator.writeObject(count);
+        generator.writeRaw('\n');
     }
 
     /**
@@ -83,8 +381,8 @@ public class EmailController {
      */
     String formatEmail(String email) {
         String ret = email.replace(".", "");
-        ret = ret.replaceAll("\\([\\s\\S]*?\\)", "");
-        ret = ret.replaceAll("\\+\\S*@", "@");
+        ret = COMMENT.matcher(ret).replaceAll("");
+        ret = PLUS_TAG.matcher(ret).replaceAll("@");
         if (ret.contains("!")) {
             boolean inQuotes = false;
             String iterVal = ret.split("@")[0];
@@ -0,0 +1,134 @@
+package com.github.skoved.uniqueemails;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides where a batch of emails is processed. Batches with a body smaller than the threshold are processed on
+ * the request thread, so small requests are answered without a hand off. Larger batches, and batches whose size
+ * is not known up front because they are chunked or compressed, are processed by a bounded pool of threads so
+ * they cannot tie up the servlet container's threads and stall the small requests behind them. When every thread
+ * is busy and the queue is full the batch is rejected with a RejectedExecutionException.
+ * <p>
+ * The pool is published to Micrometer under the name email.async, so executor.queued and executor.active show
+ * when it is saturated, and email.async.rejected counts the batches turned away.
+ */
+@Component
+public class EmailExecutor implements MeterBinder, DisposableBean {
+    private final long thresholdBytes;
+    private final ThreadPoolExecutor executor;
+    private volatile Counter rejected;
+
+    /**
+     * Creates a new EmailExecutor.
+     *
+     * @param thresholdBytes the body size in bytes at which a batch is handed to the pool, or -1 to process every
+     *                       batch on the request thread
+     * @param poolSize the number of threads that process large batches, or 0 for one per processor
+     * @param queueCapacity the number of large batches that can wait for a thread
+     */
+    public EmailExecutor(@Value("${email.async.threshold-bytes:1048576}") long thresholdBytes,
+                         @Value("${email.async.pool-size:0}") int poolSize,
+                         @Value("${email.async.queue-capacity:64}") int queueCapacity) {
+        if (thresholdBytes < -1 || poolSize < 0 || queueCapacity < 1) {
+            throw new IllegalArgumentException("email.async.threshold-bytes must be at least -1,"
+                    + " email.async.pool-size must not be negative and email.async.queue-capacity must be"
+                    + " positive.");
+        }
+        int threads = poolSize == 0 ? Runtime.getRuntime().availableProcessors() : poolSize;
+        AtomicInteger count = new AtomicInteger();
+        this.thresholdBytes = thresholdBytes;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "email-async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Processes a batch on the request thread if it is small and on the pool otherwise.
+     *
+     * @param contentLength the size of the request body in bytes, or -1 if it is not known
+     * @param batch the work of processing the batch
+     * @param <T> the result of the batch
+     * @return the result, already complete if the batch was processed on the request thread
+     * @throws IOException if a batch processed on the request thread cannot be read
+     * @throws RejectedExecutionException if the batch is large and the pool is saturated
+     */
+    <T> CompletableFuture<T> execute(long contentLength, Batch<T> batch) throws IOException {
+        if (thresholdBytes == -1 || (contentLength >= 0 && contentLength < thresholdBytes)) {
+            return CompletableFuture.completedFuture(batch.process());
+        }
+        return submit(batch);
+    }
+
+    /**
+     * Processes a batch on the pool whatever its size, for batches whose request thread has already been let go.
+     *
+     * @param batch the work of processing the batch
+     * @param <T> the result of the batch
+     * @return the result
+     * @throws RejectedExecutionException if the pool is saturated
+     */
+    <T> CompletableFuture<T> submit(Batch<T> batch) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(batch.process());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (rejected != null) {
+                rejected.increment();
+            }
+            throw new RejectedExecutionException("The server is processing too many large batches. Please try"
+                    + " again later.", e);
+        }
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        new ExecutorServiceMetrics(executor, "email.async", Tags.empty()).bindTo(registry);
+        rejected = Counter.builder("email.async.rejected")
+                .description("The number of large batches rejected because the pool was saturated")
+                .register(registry);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The work of processing a batch.
+     *
+     * @param <T> the result of the batch
+     */
+    @FunctionalInterface
+    interface Batch<T> {
+
+        /**
+         * @return the result of the batch
+         * @throws IOException if the batch cannot be read
+         */
+        T process() throws IOException;
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.boot.Banner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Command line driver that counts the unique emails in a local file with one email per line, using the same
+ * configuration as the web service but without starting a web server. Prints the number of unique emails, lines
+ * and invalid lines, followed by the byte offset and text of the first invalid lines when --report is given.
+ * Any other --name=value argument overrides a setting from application.properties.
+ * <p>
+ * Run from the packaged jar with:
+ * java -cp unique-emails.jar -Dloader.main=com.github.skoved.uniqueemails.EmailFileCounter
+ * org.springframework.boot.loader.PropertiesLauncher [--report] file
+ */
+public class EmailFileCounter {
+    private static final String REPORT = "--report";
+
+    public static void main(String[] args) {
+        List<String> files = new ArrayList<>();
+        boolean report = false;
+        for (String arg : args) {
+            if (arg.equals(REPORT)) {
+                report = true;
+            } else if (!arg.startsWith("--")) {
+                files.add(arg);
+            }
+        }
+        if (files.size() != 1) {
+            System.err.println("usage: EmailFileCounter [--report] [--name=value...] file");
+            System.exit(1);
+        }
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(UniqueEmailsApplication.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                .properties("logging.level.root=warn")
+                .run(args);
+        Path file = Paths.get(files.get(0));
+        int status = 0;
+        try {
+            print(file, context.getBean(EmailFileProcessor.class).process(file, report), System.out);
+        } catch (IOException e) {
+            System.err.println("Could not read " + file + ": " + e);
+            status = 1;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            status = 1;
+        }
+        SpringApplication.exit(context);
+        System.exit(status);
+    }
+
+    private static void print(Path file, FileCount count, PrintStream out) {
+        out.println(file + ": " + count.getUniqueEmails() + " unique emails, " + count.getLines() + " lines, "
+                + count.getInvalidLines() + " invalid lines");
+        for (InvalidLine line : count.getReport()) {
+            out.println(line.getOffset() + "\t" + line.getLine());
+        }
+    }
+}
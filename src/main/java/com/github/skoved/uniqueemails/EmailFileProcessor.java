@@ -0,0 +1,243 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counts the unique emails in a local file with one email per line. The file is memory mapped and split into
+ * segments that end at line boundaries, and each segment is validated, formatted and deduplicated on the common
+ * ForkJoinPool the same way EmailBatchProcessor processes a request. The segments are merged in file order, so
+ * invalid lines are reported in the order they appear.
+ * <p>
+ * Lines end with \n or \r\n and are decoded as UTF-8. Empty lines are skipped. Unlike a request, invalid lines do
+ * not stop the count: the valid emails are counted and the invalid lines are reported with their byte offsets.
+ */
+@Component
+public class EmailFileProcessor {
+    private static final int NEWLINE_SEARCH_BUFFER = 8192;
+
+    private final EmailBatchProcessor batchProcessor;
+    private final UniqueEmailSets uniqueEmailSets;
+    private final Path directory;
+    private final int maxReported;
+    private final long segmentSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a new EmailFileProcessor.
+     *
+     * @param batchProcessor validates and formats every line
+     * @param uniqueEmailSets creates the sets the unique emails of each segment are deduplicated into
+     * @param directory the directory files named in requests must be in, empty to not accept file names in
+     *                  requests
+     * @param maxReported the most invalid lines reported, all invalid lines are still counted
+     * @param segmentSize the number of bytes mapped and processed by each parallel task, lines are never split so
+     *                    a segment can be longer by the length of one line
+     */
+    public EmailFileProcessor(EmailBatchProcessor batchProcessor, UniqueEmailSets uniqueEmailSets,
+                              @Value("${email.files.directory:}") String directory,
+                              @Value("${email.files.max-reported:1000}") int maxReported,
+                              @Value("${email.files.segment-size:16777216}") long segmentSize) {
+        if (maxReported < 0 || segmentSize < 1 || segmentSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("email.files.max-reported must not be negative and"
+                    + " email.files.segment-size must be between 1 and " + Integer.MAX_VALUE / 2 + ".");
+        }
+        this.batchProcessor = batchProcessor;
+        this.uniqueEmailSets = uniqueEmailSets;
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+        this.maxReported = maxReported;
+        this.segmentSize = segmentSize;
+        this.pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Finds a file named in a request. The file must be a regular file inside the configured directory, after any
+     * symbolic links are followed.
+     *
+     * @param path the path of the file, relative to the configured directory
+     * @return the real path of the file
+     * @throws IOException if the configured directory cannot be read
+     */
+    Path resolve(String path) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("Reading files is turned off. Set email.files.directory to the"
+                    + " directory files can be read from.");
+        }
+        Path root = directory.toRealPath();
+        Path file;
+        try {
+            file = root.resolve(path).toRealPath();
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("The file " + path + " does not exist.");
+        }
+        if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+            throw new IllegalArgumentException("The file " + path + " is not a file in " + directory + ".");
+        }
+        return file;
+    }
+
+    /**
+     * Counts the unique valid emails in a file.
+     *
+     * @param file the file, with one email per line
+     * @param report whether to list the invalid lines
+     * @return the number of unique valid emails, lines and invalid lines in the file and, if requested, the first
+     * invalid lines
+     * @throws IOException if the file cannot be read
+     */
+    FileCount process(Path file, boolean report) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             EmailSpill spill = uniqueEmailSets.newSpill()) {
+            long size = channel.size();
+            long segments = Math.max(1, (size + segmentSize - 1) / segmentSize);
+
+            /*
+            * Keeps as many segments in flight as the pool has threads, so the memory budget can be shared between
+            * them and the total.
+            */
+            int maxInFlight = pool.getParallelism();
+            int shares = maxInFlight + 1;
+            Segment total = new Segment(uniqueEmailSets.newExactSet(spill, shares));
+            Deque<ForkJoinTask<Segment>> inFlight = new ArrayDeque<>();
+            AtomicBoolean stop = new AtomicBoolean();
+            try {
+                long start = 0;
+                for (long i = 1; i <= segments && start < size; i++) {
+                    long end = i == segments ? size : nextLine(channel, Math.max(start, size * i / segments), size);
+                    if (end > start) {
+                        if (inFlight.size() == maxInFlight) {
+                            total.merge(inFlight.removeFirst().join());
+                        }
+                        inFlight.addLast(pool.submit(task(channel, start, end, report, spill, shares, stop)));
+                    }
+                    start = end;
+                }
+                while (!inFlight.isEmpty()) {
+                    total.merge(inFlight.removeFirst().join());
+                }
+            } finally {
+                // only left over if a segment failed, and waited for so none of them outlives the request or its spill
+                stop.set(true);
+                for (ForkJoinTask<Segment> task : inFlight) {
+                    task.quietlyJoin();
+                }
+            }
+            batchProcessor.recordBatch(total.lines, total.invalidLines, total.uniqueEmails);
+            return new FileCount(total.uniqueEmails.size(), total.lines, total.invalidLines, total.report);
+        }
+    }
+
+    /**
+     * @return the position just after the first \n at or after from, or size if there is none
+     */
+    private static long nextLine(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(NEWLINE_SEARCH_BUFFER);
+        long position = from;
+        while (position < size) {
+            // called through Buffer, since the ByteBuffer overrides added in Java 9 do not exist on Java 8
+            ((Buffer) buffer).clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private ForkJoinTask<Segment> task(FileChannel channel, long start, long end, boolean report,
+                                       EmailSpill spill, int shares, AtomicBoolean stop) {
+        return ForkJoinTask.adapt(() -> {
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("The file has a line longer than " + Integer.MAX_VALUE
+                        + " bytes.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            Segment segment = new Segment(uniqueEmailSets.newExactSet(spill, shares));
+            byte[] bytes = new byte[256];
+            int limit = buffer.limit();
+            int lineStart = 0;
+            for (int i = 0; i <= limit; i++) {
+                if (i < limit && buffer.get(i) != '\n') {
+                    continue;
+                }
+                if (stop.get()) {
+                    break;
+                }
+                int length = i - lineStart;
+                if (length > 0 && buffer.get(i - 1) == '\r') {
+                    length--;
+                }
+                if (length > 0) {
+                    if (bytes.length < length) {
+                        bytes = new byte[Math.max(length, 2 * bytes.length)];
+                    }
+                    ((Buffer) buffer).position(lineStart);
+                    buffer.get(bytes, 0, length);
+                    String line = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                    segment.add(start + lineStart, line, batchProcessor.canonicalize(line), report);
+                }
+                lineStart = i + 1;
+            }
+            return segment;
+        });
+    }
+
+    /**
+     * The unique emails, line counts and reported invalid lines of all or part of a file.
+     */
+    private class Segment {
+        private final UniqueEmailSet uniqueEmails;
+        private final List<InvalidLine> report = new ArrayList<>();
+        private long lines;
+        private long invalidLines;
+
+        private Segment(UniqueEmailSet uniqueEmails) {
+            this.uniqueEmails = uniqueEmails;
+        }
+
+        private void add(long offset, String line, String email, boolean reportInvalid) {
+            lines++;
+            if (email != null) {
+                uniqueEmails.add(email);
+                return;
+            }
+            invalidLines++;
+            if (reportInvalid && report.size() < maxReported) {
+                report.add(new InvalidLine(offset, line));
+            }
+        }
+
+        private void merge(Segment other) {
+            uniqueEmails.merge(other.uniqueEmails);
+            lines += other.lines;
+            invalidLines += other.invalidLines;
+            for (int i = 0; i < other.report.size() && report.size() < maxReported; i++) {
+                report.add(other.report.get(i));
+            }
+        }
+    }
+}
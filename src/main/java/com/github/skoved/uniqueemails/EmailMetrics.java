@@ -0,0 +1,148 @@
+package com.github.skoved.uniqueemails;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes metrics about the email pipeline to Micrometer. Timing every stage of every email would cost more than
+ * the stages themselves, so only one in every sample rate emails is timed. Batch sizes, unique ratios, invalid
+ * counts and set memory estimates are recorded once per batch. When turned off nothing is recorded and the
+ * pipeline does not read the clock.
+ * <p>
+ * Meters:
+ * <ul>
+ *     <li>email.stage: time taken by the sampled emails in each stage, tagged with parse, comments, validate,
+ *     format or dedupe</li>
+ *     <li>email.batch.size: the number of strings in each batch</li>
+ *     <li>email.batch.unique.ratio: the fraction of the valid emails in each batch that are unique</li>
+ *     <li>email.strings: the number of strings received, tagged valid or invalid</li>
+ *     <li>email.set.bytes: the estimated memory used by the set of unique emails of each batch, including the
+ *     disk used by a set that was written to disk past email.dedupe.memory-budget</li>
+ * </ul>
+ */
+@Component
+public class EmailMetrics {
+    private final boolean enabled;
+    private final int sampleRate;
+    private final Timer parse;
+    private final Timer comments;
+    private final Timer validate;
+    private final Timer format;
+    private final Timer dedupe;
+    private final DistributionSummary batchSize;
+    private final DistributionSummary uniqueRatio;
+    private final DistributionSummary setBytes;
+    private final Counter valid;
+    private final Counter invalid;
+
+    /**
+     * Creates a new EmailMetrics and registers its meters.
+     *
+     * @param registry the registry the meters are published to
+     * @param enabled whether to record metrics
+     * @param sampleRate one in every sampleRate emails has its stages timed
+     */
+    public EmailMetrics(MeterRegistry registry, @Value("${email.metrics.enabled:true}") boolean enabled,
+                        @Value("${email.metrics.sample-rate:64}") int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("email.metrics.sample-rate must be positive.");
+        }
+        this.enabled = enabled;
+        this.sampleRate = sampleRate;
+        parse = stage(registry, "parse");
+        comments = stage(registry, "comments");
+        validate = stage(registry, "validate");
+        format = stage(registry, "format");
+        dedupe = stage(registry, "dedupe");
+        batchSize = DistributionSummary.builder("email.batch.size")
+                .description("The number of strings in each batch")
+                .publishPercentileHistogram()
+                .register(registry);
+        uniqueRatio = DistributionSummary.builder("email.batch.unique.ratio")
+                .description("The fraction of the valid emails in each batch that are unique")
+                .publishPercentileHistogram()
+                .register(registry);
+        setBytes = DistributionSummary.builder("email.set.bytes")
+                .description("The estimated memory used by the set of unique emails of each batch")
+                .baseUnit("bytes")
+                .register(registry);
+        valid = Counter.builder("email.strings").tag("result", "valid").register(registry);
+        invalid = Counter.builder("email.strings").tag("result", "invalid").register(registry);
+    }
+
+    private static Timer stage(MeterRegistry registry, String stage) {
+        return Timer.builder("email.stage")
+                .description("The time taken by the sampled emails in each stage of the pipeline")
+                .tag("stage", stage)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /**
+     * @return whether metrics are recorded
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param index the position of a string in its batch or chunk
+     * @return whether the stages of the string should be timed
+     */
+    boolean isSampled(long index) {
+        return enabled && index % sampleRate == 0;
+    }
+
+    /**
+     * Records the time taken to read a string from the request body.
+     *
+     * @param nanos the time taken in nanoseconds
+     */
+    void recordParse(long nanos) {
+        parse.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time taken by each stage an email went through.
+     *
+     * @param timings the times recorded by EmailCanonicalizer.canonicalize
+     * @param deduplicated the System.nanoTime at which the email was added to the set of unique emails
+     */
+    void recordStages(long[] timings, long deduplicated) {
+        record(comments, timings[EmailCanonicalizer.STARTED], timings[EmailCanonicalizer.COMMENTS_REMOVED]);
+        record(validate, timings[EmailCanonicalizer.COMMENTS_REMOVED], timings[EmailCanonicalizer.VALIDATED]);
+        record(format, timings[EmailCanonicalizer.VALIDATED], timings[EmailCanonicalizer.FORMATTED]);
+        record(dedupe, timings[EmailCanonicalizer.FORMATTED], deduplicated);
+    }
+
+    private static void record(Timer timer, long start, long end) {
+        if (start != 0 && end != 0) {
+            timer.record(end - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Records the size and outcome of a batch.
+     *
+     * @param strings the number of strings in the batch
+     * @param invalidStrings the number of those strings that were not valid emails
+     * @param uniqueEmails the set of unique emails of the batch, only complete if no strings were invalid
+     */
+    void recordBatch(long strings, long invalidStrings, UniqueEmailSet uniqueEmails) {
+        if (!enabled) {
+            return;
+        }
+        batchSize.record(strings);
+        valid.increment(strings - invalidStrings);
+        invalid.increment(invalidStrings);
+        if (invalidStrings == 0 && strings > 0) {
+            uniqueRatio.record((double) uniqueEmails.size() / strings);
+            setBytes.record(uniqueEmails.estimatedBytes());
+        }
+    }
+}
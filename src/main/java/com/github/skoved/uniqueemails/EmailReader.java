@@ -0,0 +1,17 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the strings of a request body one at a time, so a batch can be processed as it arrives instead of being
+ * bound into memory first. There is an implementation for each format a batch can be sent in.
+ */
+interface EmailReader extends Closeable {
+
+    /**
+     * @return the next string of the body or null once every string has been read
+     * @throws IOException if the body cannot be read
+     */
+    String next() throws IOException;
+}
@@ -0,0 +1,197 @@
+package com.github.skoved.uniqueemails;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admits, reads and processes the batches of requests, along with the whole of POST /email/validate. Both
+ * EmailController and LightweightServer serve requests through it, so the two only share the components a batch
+ * actually uses and LightweightServer never has to make up the ones it does not serve, such as sessions.
+ */
+@Component
+public class EmailRequests {
+    private final ObjectMapper objectMapper;
+    private final EmailBatchProcessor batchProcessor;
+    private final UniqueEmailSets uniqueEmailSets;
+    private final BatchResultCache resultCache;
+    private final EmailExecutor executor;
+    private final EmailAdmission admission;
+
+    /**
+     * Creates a new EmailRequests.
+     *
+     * @param objectMapper the application's ObjectMapper, used to create streaming parsers for request bodies
+     * @param batchProcessor validates and deduplicates the emails of each request
+     * @param uniqueEmailSets creates the sets used to count unique emails exactly
+     * @param resultCache the cache of the results of /email/validate by the hash of their body
+     * @param executor decides whether each batch is processed on the request thread or a pool thread
+     * @param admission limits the size of each batch and the number processed at once
+     */
+    public EmailRequests(ObjectMapper objectMapper, EmailBatchProcessor batchProcessor,
+                         UniqueEmailSets uniqueEmailSets, BatchResultCache resultCache, EmailExecutor executor,
+                         EmailAdmission admission) {
+        this.objectMapper = objectMapper;
+        this.batchProcessor = batchProcessor;
+        this.uniqueEmailSets = uniqueEmailSets;
+        this.resultCache = resultCache;
+        this.executor = executor;
+        this.admission = admission;
+    }
+
+    /**
+     * Counts the unique emails of a body for POST /email/validate, see EmailController.validateEmails.
+     *
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @return the number of unique and valid emails, along with the ETag of the body
+     * @throws IOException if a request processed on the request thread cannot be read
+     */
+    CompletableFuture<ResponseEntity<Integer>> validate(InputStream body, HttpHeaders headers) throws IOException {
+        // a client sending a body wants it counted, whatever ETag it also sent
+        BatchResultCache.Hit hit = headers.getContentLength() != 0 ? null
+                : resultCache.get(headers.getIfNoneMatch(), headers.getContentType());
+        if (hit != null) {
+            return CompletableFuture.completedFuture(ResponseEntity.ok().eTag(hit.getEtag()).body(hit.getCount()));
+        }
+        return execute(headers, ticket -> {
+            try (BatchResultCache.Hashing hashing = resultCache.hash(body, headers.getContentType());
+                 EmailSpill spill = uniqueEmailSets.newSpill()) {
+                int count;
+                try {
+                    count = (int) process(hashing.getBody(), headers, ticket,
+                            () -> uniqueEmailSets.newExactSet(spill)).size();
+                } catch (InvalidEmailsException e) {
+                    // the rest of a batch that was stopped early is not read, so it cannot be hashed
+                    if (!e.isStopped()) {
+                        hashing.fail(e);
+                    }
+                    throw e;
+                } catch (IllegalArgumentException e) {
+                    hashing.fail(e);
+                    throw e;
+                }
+                String etag = hashing.complete(count);
+                return etag == null ? ResponseEntity.ok(count) : ResponseEntity.ok().eTag(etag).body(count);
+            }
+        });
+    }
+
+    /**
+     * Admits a request to be processed and processes it on the request thread or EmailExecutor's pool. A request
+     * that has to wait for its turn is always processed on the pool once it is admitted, so neither its own
+     * request thread nor the thread that let it in is held up. The request's admission ticket is closed once it
+     * has been processed.
+     *
+     * @param headers the request headers
+     * @param batch the work of processing the request
+     * @param <T> the result of the request
+     * @return the result of the request
+     * @throws IOException if a request processed on the request thread cannot be read
+     */
+    <T> CompletableFuture<T> execute(HttpHeaders headers, AdmittedBatch<T> batch) throws IOException {
+        return execute(headers.getContentLength(), batch);
+    }
+
+    /**
+     * Admits a request to be processed the same way as execute(HttpHeaders, AdmittedBatch), for requests whose work
+     * is not the size of their body.
+     *
+     * @param contentLength the size of the work in bytes, or -1 if it is not known
+     * @param batch the work of processing the request
+     * @param <T> the result of the request
+     * @return the result of the request
+     * @throws IOException if a request processed on the request thread cannot be read
+     */
+    <T> CompletableFuture<T> execute(long contentLength, AdmittedBatch<T> batch) throws IOException {
+        CompletableFuture<EmailAdmission.Ticket> admitted = admission.admit(contentLength);
+        if (!admitted.isDone()) {
+            return admitted.thenCompose(ticket -> {
+                CompletableFuture<T> result;
+                try {
+                    result = executor.submit(() -> batch.process(ticket));
+                } catch (RuntimeException e) {
+                    ticket.close();
+                    throw e;
+                }
+                return result.whenComplete((value, e) -> ticket.close());
+            });
+        }
+        EmailAdmission.Ticket ticket = admitted.join();
+        CompletableFuture<T> result;
+        try {
+            result = executor.execute(contentLength, () -> batch.process(ticket));
+        } catch (IOException | RuntimeException e) {
+            ticket.close();
+            throw e;
+        }
+        return result.whenComplete((value, e) -> ticket.close());
+    }
+
+    /**
+     * Validates and deduplicates every string in a request body.
+     *
+     * @param body the request body, a JSON array of strings or one email per line received from the client.
+     * @param headers the request headers. The Content-Type is text/plain for one email per line and JSON otherwise.
+     * @param ticket the request's admission ticket, which limits the body and the emails read from it
+     * @param sets creates the empty set the unique emails are deduplicated into
+     * @return the set of unique emails
+     * @throws IOException if the request body cannot be read
+     */
+    UniqueEmailSet process(InputStream body, HttpHeaders headers, EmailAdmission.Ticket ticket,
+                           Supplier<? extends UniqueEmailSet> sets) throws IOException {
+        if (body == null) {
+            throw new IllegalArgumentException("Please provide a list of valid emails.");
+        }
+
+        EmailBatchProcessor.Result result;
+        try (EmailReader reader = reader(ticket.limit(body), headers.getContentType())) {
+            result = batchProcessor.process(ticket.limit(reader), sets);
+        }
+
+        if (result.getInvalidCount() > 0) {
+            throw new InvalidEmailsException(result.getInvalidCount(), result.getInvalidSample(), result.isStopped());
+        }
+        return result.getUniqueEmails();
+    }
+
+    /**
+     * Creates the reader for the format of a request body.
+     *
+     * @param body the request body
+     * @param contentType the Content-Type of the body, or null if it has none
+     * @return a LineEmailReader for text/plain bodies and a JsonEmailReader for all others
+     * @throws IOException if the body cannot be read
+     */
+    EmailReader reader(InputStream body, MediaType contentType) throws IOException {
+        if (contentType != null && MediaType.TEXT_PLAIN.isCompatibleWith(contentType)) {
+            Charset charset = contentType.getCharset();
+            return new LineEmailReader(body, charset == null ? StandardCharsets.UTF_8 : charset);
+        }
+        return new JsonEmailReader(objectMapper.getFactory(), body);
+    }
+
+    /**
+     * The work of processing an admitted request.
+     *
+     * @param <T> the result of the request
+     */
+    @FunctionalInterface
+    interface AdmittedBatch<T> {
+
+        /**
+         * @param ticket the request's admission ticket
+         * @return the result of the request
+         * @throws IOException if the request body cannot be read
+         */
+        T process(EmailAdmission.Ticket ticket) throws IOException;
+    }
+}
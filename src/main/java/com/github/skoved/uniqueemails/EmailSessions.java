@@ -0,0 +1,146 @@
+package com.github.skoved.uniqueemails;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the running set of unique emails for clients that send their emails over many requests. Each session
+ * holds at most a fixed number of unique emails, sessions that have not been used for the idle timeout are
+ * closed, and the least recently used session is closed when a new one would go over the maximum number of
+ * sessions. Batches can be appended to the same session concurrently.
+ */
+@Component
+public class EmailSessions {
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final UniqueEmailSets uniqueEmailSets;
+    private final int maxSessions;
+    private final long maxEmails;
+    private final Duration idleTimeout;
+
+    /**
+     * Creates a new EmailSessions.
+     *
+     * @param uniqueEmailSets creates the set each session deduplicates its emails into
+     * @param maxSessions the number of open sessions at which the least recently used one is closed
+     * @param maxEmails the number of unique emails a single session can hold
+     * @param idleTimeout how long a session can go unused before it is closed
+     */
+    public EmailSessions(UniqueEmailSets uniqueEmailSets,
+                         @Value("${email.sessions.max-sessions:1000}") int maxSessions,
+                         @Value("${email.sessions.max-emails:10000000}") long maxEmails,
+                         @Value("${email.sessions.idle-timeout:30m}") Duration idleTimeout) {
+        if (maxSessions < 1 || maxEmails < 1) {
+            throw new IllegalArgumentException("The maximum number of sessions and emails must be positive.");
+        }
+        this.uniqueEmailSets = uniqueEmailSets;
+        this.maxSessions = maxSessions;
+        this.maxEmails = maxEmails;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Opens a new, empty session.
+     *
+     * @return the id of the session
+     */
+    synchronized String create() {
+        while (sessions.size() >= maxSessions) {
+            sessions.entrySet().stream()
+                    .min(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                    .ifPresent(entry -> sessions.remove(entry.getKey()));
+        }
+        String id = UUID.randomUUID().toString();
+        sessions.put(id, new Session(uniqueEmailSets.newExactSet()));
+        return id;
+    }
+
+    /**
+     * Adds a batch of unique emails to a session. The batch is either added in full or, if the session would go
+     * over its maximum number of emails, not at all. Only the emails the session does not already hold count
+     * towards the maximum, so a batch can always be sent again. They are only looked up in the session when it is
+     * close enough to its maximum that the batch might not fit, and the batch is then merged in place.
+     *
+     * @param id the id of the session
+     * @param batch the unique emails of the batch, created by UniqueEmailSets.newExactSet
+     * @return the number of unique emails in the session after adding the batch
+     * @throws SessionNotFoundException if there is no open session with the id
+     */
+    long append(String id, UniqueEmailSet batch) {
+        Session session = get(id);
+        synchronized (session) {
+            // the session may have been closed after it was looked up
+            if (sessions.get(id) != session) {
+                throw new SessionNotFoundException(id);
+            }
+            long size = session.emails.size();
+            if (size + batch.size() > maxEmails && size + session.emails.countNew(batch) > maxEmails) {
+                throw new IllegalArgumentException("Session " + id + " cannot hold more than " + maxEmails
+                        + " unique emails.");
+            }
+            session.emails.merge(batch);
+            return session.emails.size();
+        }
+    }
+
+    /**
+     * @param id the id of the session
+     * @return the number of unique emails in the session
+     * @throws SessionNotFoundException if there is no open session with the id
+     */
+    long count(String id) {
+        Session session = get(id);
+        synchronized (session) {
+            return session.emails.size();
+        }
+    }
+
+    /**
+     * Closes a session and frees its emails.
+     *
+     * @param id the id of the session
+     * @return the number of unique emails the session held
+     * @throws SessionNotFoundException if there is no open session with the id
+     */
+    long close(String id) {
+        Session session = sessions.remove(id);
+        if (session == null) {
+            throw new SessionNotFoundException(id);
+        }
+        synchronized (session) {
+            return session.emails.size();
+        }
+    }
+
+    /**
+     * Closes every session that has not been used for the idle timeout.
+     */
+    @Scheduled(fixedDelayString = "${email.sessions.sweep-interval:60000}")
+    void closeIdleSessions() {
+        long cutoff = System.nanoTime() - idleTimeout.toNanos();
+        sessions.values().removeIf(session -> session.lastAccess - cutoff < 0);
+    }
+
+    private Session get(String id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            throw new SessionNotFoundException(id);
+        }
+        session.lastAccess = System.nanoTime();
+        return session;
+    }
+
+    private static final class Session {
+        private final UniqueEmailSet emails;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Session(UniqueEmailSet emails) {
+            this.emails = emails;
+        }
+    }
+}
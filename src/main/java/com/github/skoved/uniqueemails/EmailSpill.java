@@ -0,0 +1,113 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The temporary directory the SpillingEmailSets of one request write their sorted runs to. The directory is only
+ * created once the first run is written, and closing the spill deletes it along with every run in it, so the runs
+ * of a request are cleaned up however the request ends. Runs can be created by several threads at once.
+ */
+class EmailSpill implements Closeable {
+    private final Path parent;
+    private Path directory;
+    private int runs;
+    private long bytes;
+    private boolean closed;
+
+    /**
+     * Creates a new EmailSpill.
+     *
+     * @param parent the directory the temporary directory is created in
+     */
+    EmailSpill(Path parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return the path of a new run, which does not exist yet
+     * @throws UncheckedIOException if the temporary directory cannot be created
+     * @throws IllegalStateException if the spill has been closed
+     */
+    synchronized Path newRun() {
+        if (closed) {
+            throw new IllegalStateException("The spill has been closed.");
+        }
+        if (directory == null) {
+            try {
+                directory = Files.createTempDirectory(parent, "email-spill");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return directory.resolve("run-" + runs++);
+    }
+
+    /**
+     * Records the size of a run that has been written.
+     *
+     * @param run a run created by newRun
+     * @return the size of the run in bytes
+     * @throws UncheckedIOException if the run cannot be read
+     */
+    synchronized long written(Path run) {
+        try {
+            long size = Files.size(run);
+            bytes += size;
+            return size;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes a run that is no longer needed.
+     *
+     * @param run a run created by newRun
+     */
+    void delete(Path run) {
+        try {
+            Files.deleteIfExists(run);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of runs written
+     */
+    synchronized int getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the total size of every run written in bytes, including runs that have since been deleted
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Deletes the temporary directory and every run in it.
+     *
+     * @throws IOException if a run cannot be deleted
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (directory == null) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+        directory = null;
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.List;
+
+/**
+ * The response of the file endpoint of EmailController. Holds the number of unique valid emails in a file, the
+ * number of lines and invalid lines it has, and the first invalid lines if they were requested.
+ */
+public class FileCount {
+    private final long uniqueEmails;
+    private final long lines;
+    private final long invalidLines;
+    private final List<InvalidLine> report;
+
+    FileCount(long uniqueEmails, long lines, long invalidLines, List<InvalidLine> report) {
+        this.uniqueEmails = uniqueEmails;
+        this.lines = lines;
+        this.invalidLines = invalidLines;
+        this.report = report;
+    }
+
+    /**
+     * @return the number of unique valid emails in the file
+     */
+    public long getUniqueEmails() {
+        return uniqueEmails;
+    }
+
+    /**
+     * @return the number of lines in the file that are not empty
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the number of lines in the file that are not valid emails
+     */
+    public long getInvalidLines() {
+        return invalidLines;
+    }
+
+    /**
+     * @return the first invalid lines in the order they appear in the file, empty unless they were requested
+     */
+    public List<InvalidLine> getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,312 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An exact UniqueEmailSet that stores a 64 or 128 bit Murmur3 fingerprint of each formatted email in an open
+ * addressing table of longs instead of the email itself. The table is kept between a quarter and half full, so
+ * 64 bit fingerprints use 16 to 32 bytes per email, and adding an email does not allocate. Two different emails
+ * are only counted once if their fingerprints collide, which for 64 bit fingerprints only becomes likely after
+ * about 2^32 distinct emails.
+ * <p>
+ * When auditing is turned on the set also remembers the email behind every fingerprint and compares the strings
+ * whenever a fingerprint is seen again. Colliding emails are then counted correctly and reported by getCollisions.
+ * Auditing uses more memory than a HashSet and is meant for checking the fingerprints against real data.
+ */
+class FingerprintEmailSet implements UniqueEmailSet {
+    private static final Logger log = LoggerFactory.getLogger(FingerprintEmailSet.class);
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int width;
+    private final long[] hash = new long[2];
+    private long[] table;
+    private int mask;
+    private long size;
+    private boolean containsZero;
+    private final Map<Fingerprint, String> originals;
+    private final Set<String> collisions;
+
+    /**
+     * Creates a new, empty FingerprintEmailSet.
+     *
+     * @param bits the number of bits in each fingerprint, either 64 or 128
+     * @param audit whether to keep the emails so fingerprint collisions can be detected
+     */
+    FingerprintEmailSet(int bits, boolean audit) {
+        if (bits != 64 && bits != 128) {
+            throw new IllegalArgumentException("Fingerprints must be 64 or 128 bits.");
+        }
+        width = bits / 64;
+        table = new long[INITIAL_CAPACITY * width];
+        mask = INITIAL_CAPACITY - 1;
+        originals = audit ? new HashMap<>() : null;
+        collisions = audit ? new HashSet<>() : null;
+    }
+
+    @Override
+    public boolean add(String email) {
+        Murmur3.hash128(email, hash);
+        long h2 = width == 2 ? hash[1] : 0;
+        if (insert(hash[0], h2)) {
+            if (originals != null) {
+                originals.put(new Fingerprint(hash[0], h2), email);
+            }
+            return true;
+        }
+        if (originals == null) {
+            return false;
+        }
+
+        String original = originals.get(new Fingerprint(hash[0], h2));
+        if (original.equals(email) || !collisions.add(email)) {
+            return false;
+        }
+        log.warn("The emails {} and {} have the same {} bit fingerprint.", original, email, width * 64);
+        return true;
+    }
+
+    @Override
+    public void merge(UniqueEmailSet other) {
+        FingerprintEmailSet set = mergeable(other);
+        if (originals != null) {
+            set.originals.values().forEach(this::add);
+            set.collisions.forEach(this::add);
+            return;
+        }
+        if (set.containsZero) {
+            insert(0, 0);
+        }
+        for (int i = 0; i < set.table.length; i += width) {
+            long h2 = width == 2 ? set.table[i + 1] : 0;
+            if (set.table[i] != 0 || h2 != 0) {
+                insert(set.table[i], h2);
+            }
+        }
+    }
+
+    @Override
+    public long countNew(UniqueEmailSet other) {
+        FingerprintEmailSet set = mergeable(other);
+        long count = 0;
+        if (originals != null) {
+            for (String email : set.originals.values()) {
+                if (!contains(email)) {
+                    count++;
+                }
+            }
+            for (String email : set.collisions) {
+                if (!contains(email)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        if (set.containsZero && !containsZero) {
+            count++;
+        }
+        for (int i = 0; i < set.table.length; i += width) {
+            long h2 = width == 2 ? set.table[i + 1] : 0;
+            if ((set.table[i] != 0 || h2 != 0) && !find(set.table[i], h2)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public UniqueEmailSet newPart() {
+        return new FingerprintEmailSet(width * 64, originals != null);
+    }
+
+    @Override
+    public long size() {
+        return collisions == null ? size : size + collisions.size();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        // audited emails cost about as much as in a HashSet, see HashEmailSet
+        return 8L * table.length + (originals == null ? 0 : 100L * (originals.size() + collisions.size()));
+    }
+
+    /**
+     * @return the number of longs in each fingerprint, 1 for 64 bit and 2 for 128 bit fingerprints
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return every fingerprint in the set in no particular order, each taking getWidth longs of the array
+     */
+    long[] fingerprints() {
+        long[] fingerprints = new long[(int) size * width];
+        int n = 0;
+        if (containsZero) {
+            n += width;
+        }
+        for (int i = 0; i < table.length; i += width) {
+            long h2 = width == 2 ? table[i + 1] : 0;
+            if (table[i] != 0 || h2 != 0) {
+                fingerprints[n++] = table[i];
+                if (width == 2) {
+                    fingerprints[n++] = h2;
+                }
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Adds a fingerprint read back from a serialized set. Audited sets cannot be added to this way, because the
+     * email behind the fingerprint is not known.
+     *
+     * @param h1 the first 64 bits of the fingerprint
+     * @param h2 the second 64 bits of the fingerprint, 0 for 64 bit fingerprints
+     * @return true if the fingerprint was not already in the set
+     */
+    boolean addFingerprint(long h1, long h2) {
+        if (originals != null) {
+            throw new IllegalStateException("Fingerprints cannot be added to an audited set.");
+        }
+        return insert(h1, width == 2 ? h2 : 0);
+    }
+
+    /**
+     * @return whether adding one more fingerprint doubles the size of the table
+     */
+    boolean isFull() {
+        return size + 1 > mask / 2;
+    }
+
+    /**
+     * @return the number of emails that had the same fingerprint as a different email, always 0 unless auditing
+     */
+    int getCollisions() {
+        return collisions == null ? 0 : collisions.size();
+    }
+
+    private FingerprintEmailSet mergeable(UniqueEmailSet other) {
+        if (!(other instanceof FingerprintEmailSet) || ((FingerprintEmailSet) other).width != width
+                || (((FingerprintEmailSet) other).originals == null) != (originals == null)) {
+            throw new IllegalArgumentException("A FingerprintEmailSet can only be merged with another"
+                    + " FingerprintEmailSet with the same settings.");
+        }
+        return (FingerprintEmailSet) other;
+    }
+
+    /**
+     * @return whether an email is in an audited set, comparing it to the email behind its fingerprint
+     */
+    private boolean contains(String email) {
+        Murmur3.hash128(email, hash);
+        long h2 = width == 2 ? hash[1] : 0;
+        return find(hash[0], h2) && (originals.get(new Fingerprint(hash[0], h2)).equals(email)
+                || collisions.contains(email));
+    }
+
+    /**
+     * @return whether a fingerprint is in the table
+     */
+    private boolean find(long h1, long h2) {
+        if (h1 == 0 && h2 == 0) {
+            return containsZero;
+        }
+        for (int slot = (int) (h1 ^ (h1 >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            int i = slot * width;
+            long curr1 = table[i];
+            long curr2 = width == 2 ? table[i + 1] : 0;
+            if (curr1 == h1 && curr2 == h2) {
+                return true;
+            }
+            if (curr1 == 0 && curr2 == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds a fingerprint to the table. An all zero fingerprint marks an empty slot, so it is tracked separately.
+     *
+     * @return true if the fingerprint was not already in the table
+     */
+    private boolean insert(long h1, long h2) {
+        if (h1 == 0 && h2 == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        for (int slot = (int) (h1 ^ (h1 >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            int i = slot * width;
+            long curr1 = table[i];
+            long curr2 = width == 2 ? table[i + 1] : 0;
+            if (curr1 == h1 && curr2 == h2) {
+                return false;
+            }
+            if (curr1 == 0 && curr2 == 0) {
+                table[i] = h1;
+                if (width == 2) {
+                    table[i + 1] = h2;
+                }
+                if (++size > mask / 2) {
+                    grow();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Doubles the size of the table so it is never more than half full.
+     */
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        mask = mask * 2 + 1;
+        for (int i = 0; i < old.length; i += width) {
+            long h1 = old[i];
+            long h2 = width == 2 ? old[i + 1] : 0;
+            if (h1 == 0 && h2 == 0) {
+                continue;
+            }
+            int slot = (int) (h1 ^ (h1 >>> 32)) & mask;
+            while (table[slot * width] != 0 || (width == 2 && table[slot * width + 1] != 0)) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot * width] = h1;
+            if (width == 2) {
+                table[slot * width + 1] = h2;
+            }
+        }
+    }
+
+    private static final class Fingerprint {
+        private final long h1;
+        private final long h2;
+
+        private Fingerprint(long h1, long h2) {
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fingerprint && ((Fingerprint) o).h1 == h1 && ((Fingerprint) o).h2 == h2;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(h1, h2);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Decompresses request bodies sent with Content-Encoding: gzip. The body is inflated as it is read, so it is never
+ * held in memory compressed or decompressed, and the endpoints of EmailController see the same stream they would
+ * if the body had not been compressed. A body that is not valid gzip causes an IllegalArgumentException when it is
+ * read.
+ */
+@Component
+public class GzipRequestFilter extends OncePerRequestFilter {
+    private static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String encoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (encoding == null || !GZIP.equalsIgnoreCase(encoding.trim())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        chain.doFilter(new DecompressedRequest(request), response);
+    }
+
+    /**
+     * Wraps a gzip compressed stream so it is decompressed as it is read.
+     *
+     * @param in the compressed stream
+     * @return the decompressed stream
+     * @throws IOException if the stream cannot be read
+     * @throws IllegalArgumentException if the stream does not start with a gzip header
+     */
+    static InputStream decode(InputStream in) throws IOException {
+        try {
+            return new GzipStream(in);
+        } catch (ZipException | EOFException e) {
+            throw new IllegalArgumentException("The request body is not valid gzip.", e);
+        }
+    }
+
+    /**
+     * A request whose body is decompressed as it is read. The Content-Encoding and Content-Length headers
+     * describe the compressed body, so they are hidden.
+     */
+    private static class DecompressedRequest extends HttpServletRequestWrapper {
+        private ServletInputStream body;
+
+        private DecompressedRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (body == null) {
+                InputStream in = decode(super.getInputStream());
+                body = new ServletInputStream() {
+                    private boolean finished;
+
+                    @Override
+                    public int read() throws IOException {
+                        int b = in.read();
+                        finished = b == -1;
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int read = in.read(b, off, len);
+                        finished = read == -1;
+                        return read;
+                    }
+
+                    @Override
+                    public boolean isFinished() {
+                        return finished;
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setReadListener(ReadListener listener) {
+                        throw new UnsupportedOperationException("Compressed bodies can only be read blocking.");
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        in.close();
+                    }
+                };
+            }
+            return body;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return isHidden(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return isHidden(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        private static boolean isHidden(String name) {
+            return HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name)
+                    || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name);
+        }
+    }
+
+    /**
+     * A GZIPInputStream that reports a corrupt or truncated body as an IllegalArgumentException, so the client is
+     * told their body is malformed instead of the request failing with a server error.
+     */
+    private static class GzipStream extends GZIPInputStream {
+
+        private GzipStream(InputStream in) throws IOException {
+            super(in, BUFFER_SIZE);
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            try {
+                return super.read(buf, off, len);
+            } catch (ZipException | EOFException e) {
+                throw new IllegalArgumentException("The request body is not valid gzip.", e);
+            }
+        }
+    }
+}
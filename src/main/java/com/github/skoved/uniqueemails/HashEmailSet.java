@@ -0,0 +1,58 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An exact UniqueEmailSet that stores every formatted email in a HashSet.
+ */
+class HashEmailSet implements UniqueEmailSet {
+    /*
+    * a HashMap node, its slot in the table and a String with its char array, not counting the chars themselves
+    */
+    private static final int ENTRY_BYTES = 32 + 8 + 24 + 16;
+
+    private final Set<String> emails = new HashSet<>();
+    private long bytes;
+
+    @Override
+    public boolean add(String email) {
+        if (emails.add(email)) {
+            bytes += ENTRY_BYTES + 2L * email.length();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void merge(UniqueEmailSet other) {
+        mergeable(other).emails.forEach(this::add);
+    }
+
+    @Override
+    public long countNew(UniqueEmailSet other) {
+        return mergeable(other).emails.stream().filter(email -> !emails.contains(email)).count();
+    }
+
+    private static HashEmailSet mergeable(UniqueEmailSet other) {
+        if (!(other instanceof HashEmailSet)) {
+            throw new IllegalArgumentException("A HashEmailSet can only be merged with another HashEmailSet.");
+        }
+        return (HashEmailSet) other;
+    }
+
+    @Override
+    public UniqueEmailSet newPart() {
+        return new HashEmailSet();
+    }
+
+    @Override
+    public long size() {
+        return emails.size();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * An approximate UniqueEmailSet. Each email is hashed and only the longest run of leading zeros seen in each of
+ * 2^precision buckets is kept, so the set uses 2^precision bytes no matter how many emails are added to it.
+ * The relative standard error of the estimate is 1.04 / sqrt(2^precision).
+ */
+class HyperLogLog implements UniqueEmailSet {
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 18;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Creates a new, empty HyperLogLog.
+     *
+     * @param precision the number of hash bits used to pick a bucket, between 4 and 18
+     */
+    HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("The precision must be between " + MIN_PRECISION + " and "
+                    + MAX_PRECISION + ".");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    @Override
+    public boolean add(String email) {
+        return addHash(Murmur3.hash64(email));
+    }
+
+    /**
+     * Adds an already hashed email to the set.
+     *
+     * @param hash the 64 bit hash of a formatted email
+     * @return true if the estimate may have changed
+     */
+    boolean addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, since a HyperLogLog does not keep its emails
+     */
+    @Override
+    public long countNew(UniqueEmailSet other) {
+        throw new UnsupportedOperationException("A HyperLogLog cannot tell which emails it holds.");
+    }
+
+    @Override
+    public UniqueEmailSet newPart() {
+        return new HyperLogLog(precision);
+    }
+
+    @Override
+    public void merge(UniqueEmailSet other) {
+        if (!(other instanceof HyperLogLog) || ((HyperLogLog) other).precision != precision) {
+            throw new IllegalArgumentException("A HyperLogLog can only be merged with another HyperLogLog of the"
+                    + " same precision.");
+        }
+        byte[] otherRegisters = ((HyperLogLog) other).registers;
+        for (int i = 0; i < registers.length; i++) {
+            if (otherRegisters[i] > registers[i]) {
+                registers[i] = otherRegisters[i];
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return registers.length;
+    }
+
+    /**
+     * @return the relative standard error of the estimate returned by size
+     */
+    double standardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    /**
+     * @return the number of hash bits used to pick a bucket
+     */
+    int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return the registers backing the set, so writing to them changes the set
+     */
+    byte[] getRegisters() {
+        return registers;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
@@ -11,13 +11,14 @@ import org.springframework.web.bind.annotation.ResponseStatus;
  */
 @ControllerAdvice
 public class IllegalArgumentAdvice {
+    static final String HELP = " Please submit properly formed email addresses."
+            + " https://en.wikipedia.org/wiki/Email_address#Examples has"
+            + " examples of valid email addresses.";
 
     @ResponseBody
     @ExceptionHandler(IllegalArgumentException.class)
     @ResponseStatus(HttpStatus.BAD_REQUEST)
     String illegalArgumentExceptionHandler(IllegalArgumentException ex) {
-        return ex.getMessage() + " Please submit properly formed email addresses."
-                + " https://en.wikipedia.org/wiki/Email_address#Examples has"
-                + " examples of valid email addresses.";
+        return ex.getMessage() + HELP;
     }
 }
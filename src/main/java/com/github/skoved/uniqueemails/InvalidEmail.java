@@ -0,0 +1,28 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * A string from a batch that is not a valid email, along with where it is in the batch.
+ */
+public class InvalidEmail {
+    private final long index;
+    private final String value;
+
+    InvalidEmail(long index, String value) {
+        this.index = index;
+        this.value = value;
+    }
+
+    /**
+     * @return the position of the string in the batch, starting from 0. Empty lines of a text body are not counted.
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the string, cut short if it is very long
+     */
+    public String getValue() {
+        return value;
+    }
+}
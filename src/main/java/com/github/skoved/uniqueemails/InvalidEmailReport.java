@@ -0,0 +1,49 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.List;
+
+/**
+ * The response sent when a batch has strings that are not valid emails. Holds the number of invalid strings and
+ * the first of them along with their index in the batch.
+ */
+public class InvalidEmailReport {
+    private final String message;
+    private final long invalidCount;
+    private final boolean stopped;
+    private final List<InvalidEmail> sample;
+
+    InvalidEmailReport(String message, long invalidCount, boolean stopped, List<InvalidEmail> sample) {
+        this.message = message;
+        this.invalidCount = invalidCount;
+        this.stopped = stopped;
+        this.sample = sample;
+    }
+
+    /**
+     * @return a description of the problem and how to fix it
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the number of invalid strings found
+     */
+    public long getInvalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return whether the rest of the batch was not read, in which case the batch may have more invalid strings
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return the first invalid strings in the order they were sent
+     */
+    public List<InvalidEmail> getSample() {
+        return sample;
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.skoved.uniqueemails;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Handles InvalidEmailsExceptions thrown by the batch endpoints of EmailController with a JSON report of the
+ * invalid strings. Ordered ahead of IllegalArgumentAdvice, which would otherwise handle them as plain
+ * IllegalArgumentExceptions.
+ */
+@ControllerAdvice
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class InvalidEmailsAdvice {
+
+    @ResponseBody
+    @ExceptionHandler(InvalidEmailsException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    InvalidEmailReport invalidEmailsHandler(InvalidEmailsException ex) {
+        return new InvalidEmailReport(ex.getMessage() + IllegalArgumentAdvice.HELP, ex.getInvalidCount(),
+                ex.isStopped(), ex.getSample());
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.List;
+
+/**
+ * Thrown when a batch has strings that are not valid emails. Holds the number of invalid strings and a bounded
+ * sample of them instead of every one, so a batch of junk does not produce a huge error.
+ */
+class InvalidEmailsException extends IllegalArgumentException {
+    private final long invalidCount;
+    private final List<InvalidEmail> sample;
+    private final boolean stopped;
+
+    InvalidEmailsException(long invalidCount, List<InvalidEmail> sample, boolean stopped) {
+        super(invalidCount + (invalidCount == 1 ? " string is not a valid email" : " strings are not valid emails")
+                + (stopped ? ", the rest of the batch was not read." : "."));
+        this.invalidCount = invalidCount;
+        this.sample = sample;
+        this.stopped = stopped;
+    }
+
+    /**
+     * @return the number of invalid strings found
+     */
+    long getInvalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return the first invalid strings with their index in the batch
+     */
+    List<InvalidEmail> getSample() {
+        return sample;
+    }
+
+    /**
+     * @return whether the rest of the batch was not read because too many strings were invalid
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * A line of a file that is not a valid email, along with where it is in the file.
+ */
+public class InvalidLine {
+    private final long offset;
+    private final String line;
+
+    InvalidLine(long offset, String line) {
+        this.offset = offset;
+        this.line = line;
+    }
+
+    /**
+     * @return the byte offset of the start of the line in the file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the line, without its line ending
+     */
+    public String getLine() {
+        return line;
+    }
+}
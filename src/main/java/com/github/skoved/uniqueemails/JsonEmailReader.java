@@ -0,0 +1,68 @@
+package com.github.skoved.uniqueemails;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the strings in a JSON array one at a time using the Jackson streaming parser. This lets
+ * EmailController process a request body as it arrives instead of binding the whole list into memory first.
+ */
+class JsonEmailReader implements EmailReader {
+    private final JsonParser parser;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * Creates a new JsonEmailReader over the given stream.
+     *
+     * @param factory the JsonFactory used to create the streaming parser
+     * @param in the stream containing a JSON array of strings
+     * @throws IOException if the parser cannot be created
+     */
+    JsonEmailReader(JsonFactory factory, InputStream in) throws IOException {
+        parser = factory.createParser(in);
+    }
+
+    /**
+     * Returns the next entry of the array. Scalar values that are not strings are returned as their
+     * JSON text, the same way Jackson coerces them when binding to a List of strings.
+     *
+     * @return the next entry of the array or null once the end of the array has been reached
+     * @throws IOException if the underlying stream cannot be read
+     */
+    @Override
+    public String next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        try {
+            if (!started) {
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IllegalArgumentException("Please provide a list of valid emails.");
+                }
+                started = true;
+            }
+
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                finished = true;
+                return null;
+            }
+            if (token == null || !token.isScalarValue()) {
+                throw new IllegalArgumentException("Please provide a list of valid emails.");
+            }
+            return parser.getText();
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("The request body is not a valid list of emails.", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.List;
+
+/**
+ * The response of the known emails endpoint of EmailController. Holds the number of emails in a batch that were
+ * new to the corpus and that were already known, the number of invalid strings, and the index in the batch of the
+ * first new emails.
+ */
+public class KnownCount {
+    private final long newEmails;
+    private final long knownEmails;
+    private final long invalidStrings;
+    private final List<Long> newIndexes;
+
+    KnownCount(long newEmails, long knownEmails, long invalidStrings, List<Long> newIndexes) {
+        this.newEmails = newEmails;
+        this.knownEmails = knownEmails;
+        this.invalidStrings = invalidStrings;
+        this.newIndexes = newIndexes;
+    }
+
+    /**
+     * @return the number of valid emails in the batch that were not in the corpus
+     */
+    public long getNewEmails() {
+        return newEmails;
+    }
+
+    /**
+     * @return the number of valid emails in the batch that were already in the corpus
+     */
+    public long getKnownEmails() {
+        return knownEmails;
+    }
+
+    /**
+     * @return the number of strings in the batch that are not valid emails
+     */
+    public long getInvalidStrings() {
+        return invalidStrings;
+    }
+
+    /**
+     * @return the index in the batch of the first new emails, starting from 0. Empty lines of a text body are not
+     * counted.
+     */
+    public List<Long> getNewIndexes() {
+        return newIndexes;
+    }
+}
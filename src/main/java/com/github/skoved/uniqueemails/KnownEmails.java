@@ -0,0 +1,417 @@
+package com.github.skoved.uniqueemails;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * A persistent corpus of every formatted email ingested, used to tell which emails of a new batch have never been
+ * seen before. The corpus is kept in email.known.directory in three files:
+ * <ul>
+ *     <li>emails.log, every formatted email one per line in the order they were first seen, with \ and line
+ *     breaks in quoted local parts escaped as \\ and \n. It is only appended to and is what the other two files
+ *     are rebuilt from.</li>
+ *     <li>index.bin, a MappedFingerprintTable of the 128 bit fingerprint of every email, which gives the exact
+ *     answer to whether an email is known without holding the corpus in the heap. Fingerprints are added before
+ *     their records are flushed to the log at the end of each batch, so the table is marked dirty until then, and
+ *     a dirty table found when the corpus is opened is rebuilt from the log.</li>
+ *     <li>bloom.bin, a snapshot of the BloomFilter in front of the table. Most new emails are not in the filter,
+ *     so they are answered without touching the table. The snapshot is saved every snapshot-interval and on
+ *     shutdown, so a restart only has to read the end of the log written since the last snapshot instead of the
+ *     whole log. It only claims the records already flushed to the log.</li>
+ * </ul>
+ * Batches can be checked and ingested concurrently. The filter is read without a lock, lookups in the table share
+ * a read lock and each new email is added under a write lock, after checking again that another batch did not add
+ * it first. Lookups are published to Micrometer as email.known.lookups, tagged with whether the filter answered
+ * them, the table did, or the filter gave a false positive.
+ */
+@Component
+public class KnownEmails implements MeterBinder, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(KnownEmails.class);
+    private static final String LOG = "emails.log";
+    private static final String INDEX = "index.bin";
+    private static final String FILTER = "bloom.bin";
+
+    private final Path directory;
+    private final int maxIndexes;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong filtered = new AtomicLong();
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private MappedFingerprintTable table;
+    private BloomFilter filter;
+    private OutputStream emailLog;
+    private long logPosition;
+    private long flushedPosition;
+    private long snapshotPosition;
+    private long replayed;
+
+    /**
+     * Creates a new KnownEmails, opening the corpus in the directory if it already has one.
+     *
+     * @param directory the directory the corpus is kept in, empty to turn the corpus off
+     * @param expectedEmails the number of emails the Bloom filter is sized for
+     * @param falsePositiveRate the rate at which the filter sends a new email on to the table once it holds
+     *                          expectedEmails emails
+     * @param maxIndexes the most indexes of new emails returned for a batch, all new emails are still counted
+     * @throws IOException if the corpus cannot be opened
+     */
+    public KnownEmails(@Value("${email.known.directory:}") String directory,
+                       @Value("${email.known.expected-emails:10000000}") long expectedEmails,
+                       @Value("${email.known.false-positive-rate:0.01}") double falsePositiveRate,
+                       @Value("${email.known.max-indexes:10000}") int maxIndexes) throws IOException {
+        if (maxIndexes < 0) {
+            throw new IllegalArgumentException("email.known.max-indexes must not be negative.");
+        }
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+        this.maxIndexes = maxIndexes;
+        if (this.directory != null) {
+            open(expectedEmails, falsePositiveRate);
+        }
+    }
+
+    /**
+     * Checks every string of a batch against the corpus.
+     *
+     * @param reader the strings of the batch
+     * @param batchProcessor formats every string before it is looked up
+     * @param ingest whether to add the new emails to the corpus. When they are added, an email repeated in the
+     *               batch is only new the first time.
+     * @return the number of new, known and invalid strings and the indexes of the first new ones
+     * @throws IOException if the batch cannot be read or the corpus cannot be written to
+     */
+    KnownCount check(EmailReader reader, EmailBatchProcessor batchProcessor, boolean ingest) throws IOException {
+        checkEnabled();
+        long[] hash = new long[2];
+        long newEmails = 0;
+        long knownEmails = 0;
+        long invalidStrings = 0;
+        List<Long> newIndexes = new ArrayList<>();
+        try {
+            String curr;
+            for (long index = 0; (curr = reader.next()) != null; index++) {
+                String email = batchProcessor.canonicalize(curr);
+                if (email == null) {
+                    invalidStrings++;
+                    continue;
+                }
+                Murmur3.hash128(email, hash);
+                boolean isNew = !contains(hash[0], hash[1]) && (!ingest || add(email, hash[0], hash[1]));
+                if (!isNew) {
+                    knownEmails++;
+                    continue;
+                }
+                newEmails++;
+                if (newIndexes.size() < maxIndexes) {
+                    newIndexes.add(index);
+                }
+            }
+        } finally {
+            if (ingest) {
+                flush();
+            }
+        }
+        return new KnownCount(newEmails, knownEmails, invalidStrings, newIndexes);
+    }
+
+    /**
+     * Fails before a request body is read if the corpus is turned off.
+     *
+     * @throws IllegalArgumentException if email.known.directory is not set
+     */
+    void checkEnabled() {
+        if (directory == null) {
+            throw new IllegalArgumentException("The known emails corpus is turned off. Set email.known.directory to"
+                    + " the directory it is kept in.");
+        }
+    }
+
+    /**
+     * @return the number of emails in the corpus
+     */
+    long size() {
+        lock.readLock().lock();
+        try {
+            return table == null ? 0 : table.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of log records read when the corpus was opened, because the filter snapshot or table did
+     * not already include them
+     */
+    long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Saves the Bloom filter if emails have been added since it was last saved, so a restart does not have to
+     * rebuild it from the log.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    @Scheduled(fixedDelayString = "${email.known.snapshot-interval:60000}")
+    public synchronized void snapshot() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        long position;
+        lock.readLock().lock();
+        try {
+            // records still buffered would be lost if the service died, so the snapshot cannot claim them
+            position = flushedPosition;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (position == snapshotPosition) {
+            return;
+        }
+
+        // every email before position is already in the filter, emails added while it is written are harmless
+        Path next = directory.resolve(FILTER + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(next)))) {
+            out.writeLong(position);
+            filter.writeTo(out);
+        }
+        Files.move(next, directory.resolve(FILTER), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        snapshotPosition = position;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (directory == null) {
+            return;
+        }
+        Gauge.builder("email.known.size", this, KnownEmails::size)
+                .description("The emails in the known emails corpus")
+                .register(registry);
+        lookups(registry, "filtered", filtered);
+        lookups(registry, "checked", checked);
+        lookups(registry, "false-positive", falsePositives);
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        flush();
+        lock.writeLock().lock();
+        try {
+            emailLog.close();
+            table.force();
+            table.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        snapshot();
+    }
+
+    private static void lookups(MeterRegistry registry, String result, AtomicLong count) {
+        FunctionCounter.builder("email.known.lookups", count, AtomicLong::get)
+                .description("The emails looked up in the known emails corpus")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * @return whether the corpus contains the fingerprint, checking the Bloom filter before the table
+     */
+    private boolean contains(long h1, long h2) {
+        if (!filter.mightContain(h1, h2)) {
+            filtered.incrementAndGet();
+            return false;
+        }
+        checked.incrementAndGet();
+        lock.readLock().lock();
+        try {
+            if (table.contains(h1, h2)) {
+                return true;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        falsePositives.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Adds an email to the corpus.
+     *
+     * @return false if another batch added the email first
+     */
+    private boolean add(String email, long h1, long h2) throws IOException {
+        byte[] record = (escape(email) + "\n").getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            if (!table.isDirty()) {
+                // cleared once the record is written to the log
+                table.setDirty(true);
+            }
+            if (!table.add(h1, h2)) {
+                return false;
+            }
+            emailLog.write(record);
+            logPosition += record.length;
+            filter.put(h1, h2);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the emails added so far to the log and records that the table and the next snapshot include them.
+     */
+    private void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            emailLog.flush();
+            table.setLogPosition(logPosition);
+            table.setDirty(false);
+            flushedPosition = logPosition;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Opens the corpus, loading the filter snapshot if there is one and adding the log records written after the
+     * snapshot and table were last saved.
+     */
+    private void open(long expectedEmails, double falsePositiveRate) throws IOException {
+        Files.createDirectories(directory);
+        Path logFile = directory.resolve(LOG);
+        table = MappedFingerprintTable.open(directory.resolve(INDEX));
+        if (table.isDirty()) {
+            // the table may know emails whose records never made it to the log
+            log.warn("The table {} was not saved when the service stopped and will be rebuilt from the log.",
+                    directory.resolve(INDEX));
+            table.close();
+            Files.delete(directory.resolve(INDEX));
+            table = MappedFingerprintTable.open(directory.resolve(INDEX));
+        }
+        long filterPosition = 0;
+        Path snapshot = directory.resolve(FILTER);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                filterPosition = in.readLong();
+                filter = BloomFilter.readFrom(in);
+            } catch (IOException e) {
+                log.warn("The Bloom filter snapshot {} cannot be read and will be rebuilt from the log.", snapshot, e);
+                filter = null;
+                filterPosition = 0;
+            }
+        }
+        if (filter == null) {
+            filter = new BloomFilter(expectedEmails, falsePositiveRate);
+        }
+
+        long logSize = Files.exists(logFile) ? Files.size(logFile) : 0;
+        if (filterPosition > logSize || table.getLogPosition() > logSize) {
+            throw new IOException("The corpus in " + directory + " is ahead of its log. Delete " + INDEX + " and "
+                    + FILTER + " to rebuild them from the log.");
+        }
+        logPosition = replay(logFile, Math.min(filterPosition, table.getLogPosition()), filterPosition, logSize);
+        table.setLogPosition(logPosition);
+        flushedPosition = logPosition;
+        snapshotPosition = filterPosition;
+        emailLog = new BufferedOutputStream(Files.newOutputStream(logFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    private static String escape(String email) {
+        if (email.indexOf('\\') == -1 && email.indexOf('\n') == -1) {
+            return email;
+        }
+        return email.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String unescape(String record) {
+        if (record.indexOf('\\') == -1) {
+            return record;
+        }
+        StringBuilder email = new StringBuilder(record.length());
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == '\\' && i + 1 < record.length()) {
+                c = record.charAt(++i) == 'n' ? '\n' : record.charAt(i);
+            }
+            email.append(c);
+        }
+        return email.toString();
+    }
+
+    /**
+     * Adds the log records from a position on to the table and filter. A record left without its line break when
+     * the service stopped part way through writing it is removed from the log.
+     *
+     * @return the position just after the last complete record
+     */
+    private long replay(Path logFile, long from, long filterPosition, long logSize) throws IOException {
+        if (from == logSize) {
+            return logSize;
+        }
+        long[] hash = new long[2];
+        long tablePosition = table.getLogPosition();
+        long position = from;
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(from)));
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String email = unescape(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                Murmur3.hash128(email, hash);
+                if (position >= tablePosition) {
+                    table.add(hash[0], hash[1]);
+                }
+                if (position >= filterPosition) {
+                    filter.put(hash[0], hash[1]);
+                }
+                position += line.size() + 1;
+                line.reset();
+                replayed++;
+            }
+            if (position < logSize) {
+                log.warn("Removing an incomplete record from the end of {}.", logFile);
+                channel.truncate(position);
+            }
+        }
+        return position;
+    }
+}
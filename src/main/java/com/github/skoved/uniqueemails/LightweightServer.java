@@ -0,0 +1,242 @@
+package com.github.skoved.uniqueemails;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Serves POST /email/validate with the JDK's built in HTTP server instead of a Spring context, for short lived
+ * workers where starting Spring takes longer than the work. The components of the pipeline are created directly
+ * from the settings in application.properties, and requests are handed to EmailRequests like EmailController's,
+ * so the endpoint takes the same bodies, returns the same ETags and answers errors with the same statuses and
+ * messages as the web service. Nothing else is served: there are no sessions, actuator endpoints or metrics.
+ * <p>
+ * Run from the packaged jar with:
+ * java -cp unique-emails.jar -Dloader.main=com.github.skoved.uniqueemails.LightweightServer
+ * org.springframework.boot.loader.PropertiesLauncher [--name=value...]
+ * <p>
+ * Settings are read from application.properties, then from system properties, then from --name=value arguments,
+ * so the same settings override the same defaults as the web service. email.lightweight.threads sets the number of
+ * requests served at once.
+ */
+public class LightweightServer implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(LightweightServer.class);
+    private static final String PATH = "/email/validate";
+    private static final String JSON = "application/json";
+    private static final String TEXT = "text/plain;charset=UTF-8";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final EmailExecutor executor;
+    private final EmailAdmission admission;
+    private final EmailRequests requests;
+    private final ExecutorService threads;
+    private final HttpServer server;
+
+    /**
+     * Creates the pipeline and starts serving requests.
+     *
+     * @param settings the settings, any that are missing take the same default as in the web service
+     * @throws IOException if the server cannot listen on server.port
+     */
+    public LightweightServer(Properties settings) throws IOException {
+        EmailConfiguration configuration = new EmailConfiguration();
+        AddressValidator validator = configuration.addressValidator(settings.getProperty("email.validator",
+                "scanning"), bool(settings, "email.validator.cross-check", false));
+        DomainRules rules = configuration.domainRules(settings.getProperty("email.rules.domains", ""),
+                settings.getProperty("email.rules.file", ""));
+        EmailCache cache = new EmailCache(number(settings, "email.cache.max-size", 100000));
+        EmailBatchProcessor batchProcessor = new EmailBatchProcessor(validator, rules, cache,
+                new EmailMetrics(new SimpleMeterRegistry(), false, 1),
+                (int) number(settings, "email.parallel.threshold", 10000),
+                (int) number(settings, "email.parallel.chunk-size", 4096),
+                (int) number(settings, "email.invalid.sample-size", 10),
+                number(settings, "email.invalid.stop-after", 0));
+        UniqueEmailSets sets = new UniqueEmailSets((int) number(settings, "email.dedupe.fingerprint-bits", 64),
+                bool(settings, "email.dedupe.audit", false), number(settings, "email.dedupe.memory-budget", 0),
+                settings.getProperty("email.dedupe.spill-directory", ""));
+        BatchResultCache resultCache = new BatchResultCache(number(settings, "email.result-cache.max-size", 10000),
+                duration(settings, "email.result-cache.expire-after", "10m"));
+        this.admission = new EmailAdmission(number(settings, "email.limits.max-entries", 0),
+                number(settings, "email.limits.max-bytes", 0), number(settings, "email.limits.max-in-flight", 0),
+                (int) number(settings, "email.limits.max-concurrent", 0),
+                duration(settings, "email.limits.queue-timeout", "0s"));
+        int threadCount = (int) number(settings, "email.lightweight.threads", 16);
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("email.lightweight.threads must be positive.");
+        }
+        // the server's own threads process every batch, only batches that waited for email.limits.max-concurrent
+        // are handed off
+        this.executor = new EmailExecutor(-1, threadCount, threadCount);
+        this.requests = new EmailRequests(objectMapper, batchProcessor, sets, resultCache, executor, admission);
+
+        AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "email-http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress((int) number(settings, "server.port", 8080)), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(threads);
+        server.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        LightweightServer server = new LightweightServer(settings(args));
+        log.info("Serving {} on port {}, started in {} ms", PATH, server.getPort(),
+                (System.nanoTime() - start) / 1000000);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+    }
+
+    /**
+     * Reads the settings the same way the web service does for the settings this server uses.
+     *
+     * @param args the command line arguments, where --name=value overrides a setting
+     * @return the settings
+     * @throws IOException if application.properties cannot be read
+     */
+    static Properties settings(String[] args) throws IOException {
+        Properties settings = new Properties();
+        try (InputStream in = LightweightServer.class.getResourceAsStream("/application.properties")) {
+            if (in != null) {
+                settings.load(in);
+            }
+        }
+        settings.putAll(System.getProperties());
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("--") && equals != -1) {
+                settings.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving requests, letting the requests being processed finish for up to a second.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        threads.shutdownNow();
+        executor.destroy();
+        admission.destroy();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            if (!exchange.getRequestURI().getPath().equals(PATH)) {
+                send(exchange, 404, TEXT, "Not Found");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set(HttpHeaders.ALLOW, "POST");
+                send(exchange, 405, TEXT, "Request method '" + exchange.getRequestMethod() + "' not supported");
+                return;
+            }
+            HttpHeaders headers = new HttpHeaders();
+            for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                headers.put(header.getKey(), header.getValue());
+            }
+            InputStream body = in;
+            String encoding = headers.getFirst(HttpHeaders.CONTENT_ENCODING);
+            if (encoding != null && encoding.trim().equalsIgnoreCase("gzip")) {
+                body = GzipRequestFilter.decode(in);
+                // describes the compressed body, the same as GzipRequestFilter hides it
+                headers.remove(HttpHeaders.CONTENT_LENGTH);
+            }
+
+            ResponseEntity<Integer> response = validate(body, headers);
+            if (response.getHeaders().getETag() != null) {
+                exchange.getResponseHeaders().set(HttpHeaders.ETAG, response.getHeaders().getETag());
+            }
+            send(exchange, 200, JSON, String.valueOf(response.getBody()));
+        } catch (InvalidEmailsException e) {
+            send(exchange, 400, JSON, objectMapper.writeValueAsString(new InvalidEmailReport(e.getMessage()
+                    + IllegalArgumentAdvice.HELP, e.getInvalidCount(), e.isStopped(), e.getSample())));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, TEXT, e.getMessage() + IllegalArgumentAdvice.HELP);
+        } catch (RequestTooLargeException e) {
+            send(exchange, 413, TEXT, e.getMessage() + " Please split the emails over several smaller requests.");
+        } catch (TooManyRequestsException e) {
+            send(exchange, 429, TEXT, e.getMessage() + " Please try again later.");
+        } catch (RejectedExecutionException e) {
+            send(exchange, 503, TEXT, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not process a request to {}.", PATH, e);
+            send(exchange, 500, TEXT, "Internal Server Error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Runs the endpoint, unwrapping the errors of batches processed asynchronously.
+     */
+    private ResponseEntity<Integer> validate(InputStream body, HttpHeaders headers) throws IOException {
+        try {
+            return requests.validate(body, headers).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static long number(Properties settings, String name, long defaultValue) {
+        String value = settings.getProperty(name, "").trim();
+        return value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+
+    private static boolean bool(Properties settings, String name, boolean defaultValue) {
+        String value = settings.getProperty(name, "").trim();
+        return value.isEmpty() ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static Duration duration(Properties settings, String name, String defaultValue) {
+        String value = settings.getProperty(name, "").trim();
+        return DurationStyle.detectAndParse(value.isEmpty() ? defaultValue : value);
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a text body with one email per line. Lines end with \n, \r or \r\n and empty lines are skipped, so the
+ * same emails sent as lines or as a JSON array give the same result. Nothing is quoted or escaped, which makes the
+ * body smaller and quicker to read than JSON.
+ */
+class LineEmailReader implements EmailReader {
+    private final BufferedReader reader;
+
+    /**
+     * Creates a new LineEmailReader over the given stream.
+     *
+     * @param in the stream containing one email per line
+     * @param charset the charset the stream is encoded in
+     */
+    LineEmailReader(InputStream in, Charset charset) {
+        reader = new BufferedReader(new InputStreamReader(in, charset));
+    }
+
+    @Override
+    public String next() throws IOException {
+        String line = reader.readLine();
+        while (line != null && line.isEmpty()) {
+            line = reader.readLine();
+        }
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,243 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An open addressing hash table of 128 bit email fingerprints kept in a memory mapped file, so the table can be
+ * much larger than the heap and is still there after a restart. The operating system pages in the parts of the
+ * table that are used. The table is kept at most half full and doubles by rehashing into a new file.
+ * <p>
+ * The file starts with a header holding the capacity, the number of fingerprints, a position in the log the
+ * table was built from, which the owner uses to find the records added since the table was last saved, and whether
+ * the table may hold fingerprints past that position. An all zero
+ * fingerprint marks an empty slot, so it is stored as 0, 1 instead. Lookups may run concurrently with each other,
+ * but not with adds, which the owner has to serialize.
+ */
+class MappedFingerprintTable implements Closeable {
+    private static final int MAGIC = 0x45465401;
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 16;
+    private static final int SEGMENT_SHIFT = 26;
+    private static final long SEGMENT_SLOTS = 1L << SEGMENT_SHIFT;
+    private static final long MIN_CAPACITY = 1 << 16;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private long capacity;
+    private long size;
+
+    private MappedFingerprintTable(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the table in a file, creating an empty table if the file does not exist.
+     *
+     * @param file the file holding the table
+     * @return the table
+     * @throws IOException if the file cannot be read or does not hold a table
+     */
+    static MappedFingerprintTable open(Path file) throws IOException {
+        MappedFingerprintTable table = new MappedFingerprintTable(file);
+        if (Files.exists(file)) {
+            table.map(file);
+            if (table.header.getInt(0) != MAGIC) {
+                table.close();
+                throw new IOException(file + " does not hold a fingerprint table.");
+            }
+            table.capacity = table.header.getLong(8);
+            table.size = table.header.getLong(16);
+        } else {
+            create(file, MIN_CAPACITY).close();
+            table.map(file);
+            table.capacity = MIN_CAPACITY;
+        }
+        return table;
+    }
+
+    /**
+     * @return whether the table contains the fingerprint
+     */
+    boolean contains(long h1, long h2) {
+        if (h1 == 0 && h2 == 0) {
+            h2 = 1;
+        }
+        long mask = capacity - 1;
+        for (long slot = h1 & mask; ; slot = (slot + 1) & mask) {
+            long curr1 = getLong(slot, 0);
+            long curr2 = getLong(slot, 8);
+            if (curr1 == h1 && curr2 == h2) {
+                return true;
+            }
+            if (curr1 == 0 && curr2 == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds a fingerprint, doubling the table first if it would be more than half full.
+     *
+     * @return true if the fingerprint was not already in the table
+     * @throws IOException if the table has to grow and the new file cannot be written
+     */
+    boolean add(long h1, long h2) throws IOException {
+        if (h1 == 0 && h2 == 0) {
+            h2 = 1;
+        }
+        if (size + 1 > capacity / 2) {
+            grow();
+        }
+        if (!insert(h1, h2)) {
+            return false;
+        }
+        size++;
+        header.putLong(16, size);
+        return true;
+    }
+
+    /**
+     * @return the number of fingerprints in the table
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the position in the log up to which every record has been added to the table
+     */
+    long getLogPosition() {
+        return header.getLong(24);
+    }
+
+    /**
+     * @param position the position in the log up to which every record has been added to the table
+     */
+    void setLogPosition(long position) {
+        header.putLong(24, position);
+    }
+
+    /**
+     * @return whether fingerprints may have been added whose records are not in the log before the log position
+     */
+    boolean isDirty() {
+        return header.getLong(32) != 0;
+    }
+
+    /**
+     * @param dirty whether fingerprints may have been added whose records are not in the log before the log
+     *              position
+     */
+    void setDirty(boolean dirty) {
+        header.putLong(32, dirty ? 1 : 0);
+    }
+
+    /**
+     * Writes the changes to the table to disk.
+     */
+    void force() {
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private boolean insert(long h1, long h2) {
+        long mask = capacity - 1;
+        for (long slot = h1 & mask; ; slot = (slot + 1) & mask) {
+            long curr1 = getLong(slot, 0);
+            long curr2 = getLong(slot, 8);
+            if (curr1 == h1 && curr2 == h2) {
+                return false;
+            }
+            if (curr1 == 0 && curr2 == 0) {
+                putLong(slot, 0, h1);
+                putLong(slot, 8, h2);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Rehashes the table into a new file of twice the capacity, which then replaces the old one.
+     */
+    private void grow() throws IOException {
+        Path next = file.resolveSibling(file.getFileName() + ".grow");
+        // left behind if the service stopped while the table was growing
+        Files.deleteIfExists(next);
+        long logPosition = getLogPosition();
+        boolean dirty = isDirty();
+        try (MappedFingerprintTable bigger = create(next, capacity * 2)) {
+            for (long slot = 0; slot < capacity; slot++) {
+                long h1 = getLong(slot, 0);
+                long h2 = getLong(slot, 8);
+                if (h1 != 0 || h2 != 0) {
+                    bigger.insert(h1, h2);
+                }
+            }
+            bigger.size = size;
+            bigger.header.putLong(16, size);
+            bigger.setLogPosition(logPosition);
+            bigger.setDirty(dirty);
+            bigger.force();
+        }
+        close();
+        Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(file);
+        capacity = header.getLong(8);
+    }
+
+    private static MappedFingerprintTable create(Path file, long capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // extending the file leaves it sparse, the empty slots read as zeros
+            channel.write(ByteBuffer.wrap(new byte[1]), HEADER_BYTES + capacity * SLOT_BYTES - 1);
+        }
+        MappedFingerprintTable table = new MappedFingerprintTable(file);
+        table.map(file);
+        table.header.putInt(0, MAGIC);
+        table.header.putLong(8, capacity);
+        table.capacity = capacity;
+        return table;
+    }
+
+    private void map(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        long slots = (channel.size() - HEADER_BYTES) / SLOT_BYTES;
+        segments = new MappedByteBuffer[(int) ((slots + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS)];
+        for (int i = 0; i < segments.length; i++) {
+            long first = i * SEGMENT_SLOTS;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + first * SLOT_BYTES,
+                    Math.min(SEGMENT_SLOTS, slots - first) * SLOT_BYTES);
+        }
+    }
+
+    private long getLong(long slot, int offset) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong((int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES
+                + offset);
+    }
+
+    private void putLong(long slot, int offset, long value) {
+        segments[(int) (slot >>> SEGMENT_SHIFT)].putLong((int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES + offset,
+                value);
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * The response of the merge endpoint of EmailController. Holds the number of unique emails across every dedupe
+ * state that was merged, along with its error bounds if the states were approximate.
+ */
+public class MergedCount {
+    private final int states;
+    private final long uniqueEmails;
+    private final ApproximateCount approximate;
+
+    /**
+     * Creates a new MergedCount from merged states.
+     *
+     * @param merged the union of the states
+     */
+    MergedCount(DedupeStates.Merged merged) {
+        UniqueEmailSet set = merged.getSet();
+        states = merged.getStates();
+        uniqueEmails = set.size();
+        approximate = set instanceof HyperLogLog ? new ApproximateCount((HyperLogLog) set) : null;
+    }
+
+    /**
+     * @return the number of states merged
+     */
+    public int getStates() {
+        return states;
+    }
+
+    /**
+     * @return the number of unique emails across every state, an estimate if the states were approximate
+     */
+    public long getUniqueEmails() {
+        return uniqueEmails;
+    }
+
+    /**
+     * @return the estimate and its error bounds if the states were approximate, null if they were exact
+     */
+    public ApproximateCount getApproximate() {
+        return approximate;
+    }
+}
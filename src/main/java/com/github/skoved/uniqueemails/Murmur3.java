@@ -0,0 +1,105 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * MurmurHash3 x64 128 bit hash of the UTF-16LE encoding of a string. The characters are read directly from the
+ * string so hashing an email does not allocate.
+ */
+final class Murmur3 {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {
+    }
+
+    /**
+     * @param s the string to hash
+     * @return the first 64 bits of the 128 bit hash of the string
+     */
+    static long hash64(CharSequence s) {
+        return hash(s, null);
+    }
+
+    /**
+     * Computes the full 128 bit hash of a string.
+     *
+     * @param s the string to hash
+     * @param out an array of at least two longs that receives the hash
+     */
+    static void hash128(CharSequence s, long[] out) {
+        hash(s, out);
+    }
+
+    private static long hash(CharSequence s, long[] out) {
+        int length = s.length();
+        int blocks = length / 8;
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = 0; i < blocks; i++) {
+            int offset = i * 8;
+            long k1 = pack(s, offset, 4);
+            long k2 = pack(s, offset + 4, 4);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int offset = blocks * 8;
+        int tail = length - offset;
+        if (tail > 4) {
+            h2 ^= mixK2(pack(s, offset + 4, tail - 4));
+        }
+        if (tail > 0) {
+            h1 ^= mixK1(pack(s, offset, Math.min(tail, 4)));
+        }
+
+        h1 ^= 2L * length;
+        h2 ^= 2L * length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        if (out != null) {
+            out[0] = h1;
+            out[1] = h2;
+        }
+        return h1;
+    }
+
+    private static long pack(CharSequence s, int offset, int count) {
+        long k = 0;
+        for (int i = 0; i < count; i++) {
+            k |= (long) s.charAt(offset + i) << (16 * i);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.concurrent.RejectedExecutionException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Handles RejectedExecutionExceptions thrown when EmailExecutor has no room for another large batch.
+ */
+@ControllerAdvice
+public class RejectedExecutionAdvice {
+
+    @ResponseBody
+    @ExceptionHandler(RejectedExecutionException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    String rejectedExecutionHandler(RejectedExecutionException ex) {
+        return ex.getMessage();
+    }
+}
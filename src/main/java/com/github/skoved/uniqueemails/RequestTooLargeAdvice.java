@@ -0,0 +1,21 @@
+package com.github.skoved.uniqueemails;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Handles RequestTooLargeExceptions thrown when a request goes over the limits enforced by EmailAdmission.
+ */
+@ControllerAdvice
+public class RequestTooLargeAdvice {
+
+    @ResponseBody
+    @ExceptionHandler(RequestTooLargeException.class)
+    @ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+    String requestTooLargeHandler(RequestTooLargeException ex) {
+        return ex.getMessage() + " Please split the emails over several smaller requests.";
+    }
+}
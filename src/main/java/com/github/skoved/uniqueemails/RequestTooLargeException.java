@@ -0,0 +1,11 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * Thrown when a request has more emails or more bytes than a single request is allowed to have.
+ */
+class RequestTooLargeException extends RuntimeException {
+
+    RequestTooLargeException(String message) {
+        super(message);
+    }
+}
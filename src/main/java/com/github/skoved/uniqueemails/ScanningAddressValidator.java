@@ -0,0 +1,220 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.Locale;
+import java.util.TreeSet;
+import org.apache.commons.validator.routines.DomainValidator;
+
+/**
+ * An AddressValidator that accepts exactly the emails accepted by commons-validator's
+ * EmailValidator.getInstance(false, false), but checks them with a single scan of the email instead of regular
+ * expressions and does not allocate.
+ * <p>
+ * The local part is checked by simulating the small automaton that commons-validator's user regex compiles to.
+ * The domain is checked label by label and its top level domain is looked up in a sorted copy of the top level
+ * domains commons-validator accepts. Emails containing anything other than printable ASCII, and domains that are
+ * an IP address in [ ]s, are rare and have more involved rules, so those are handed to the fallback validator.
+ */
+class ScanningAddressValidator implements AddressValidator {
+    private static final int MAX_USERNAME_LEN = 64;
+    private static final int MAX_DOMAIN_LEN = 253;
+    private static final int MAX_LABEL_LEN = 63;
+
+    /*
+    * states of the local part automaton, kept as bits so every state the regex could be in is tracked at once
+    */
+    private static final int LEADING = 1;
+    private static final int ATOM = 1 << 1;
+    private static final int ATOM_ESCAPE = 1 << 2;
+    private static final int QUOTED = 1 << 3;
+    private static final int QUOTED_BACKSLASH = 1 << 4;
+    private static final int QUOTE_CLOSED = 1 << 5;
+    private static final int DOT = 1 << 6;
+    private static final int ACCEPTING = ATOM | QUOTE_CLOSED;
+
+    private static final boolean[] ATOM_CHARS = new boolean[128];
+
+    static {
+        for (char c = '!'; c <= '~'; c++) {
+            ATOM_CHARS[c] = "()<>@,;:\\\".[]".indexOf(c) == -1;
+        }
+    }
+
+    private final AddressValidator fallback;
+    private final char[][] topLevelDomains;
+
+    /**
+     * Creates a new ScanningAddressValidator.
+     *
+     * @param fallback the validator used for emails that are not printable ASCII or have an IP address domain
+     */
+    ScanningAddressValidator(AddressValidator fallback) {
+        this.fallback = fallback;
+        DomainValidator domainValidator = DomainValidator.getInstance(false);
+        TreeSet<String> tlds = new TreeSet<>();
+        for (DomainValidator.ArrayType type : DomainValidator.ArrayType.values()) {
+            for (String tld : DomainValidator.getTLDEntries(type)) {
+                String key = tld.toLowerCase(Locale.ENGLISH);
+                if (domainValidator.isValidTld(key)) {
+                    tlds.add(key);
+                }
+            }
+        }
+        topLevelDomains = tlds.stream().map(String::toCharArray).toArray(char[][]::new);
+    }
+
+    @Override
+    public boolean isValid(char[] email, int start, int end) {
+        int at = -1;
+        for (int i = start; i < end; i++) {
+            char curr = email[i];
+            if (curr < ' ' || curr > '~') {
+                return fallback.isValid(email, start, end);
+            } else if (curr == '@') {
+                at = i;
+            }
+        }
+        /*
+        * the email cannot end with a . and is split at the last @, with trailing spaces not part of the domain
+        */
+        if (start == end || email[end - 1] == '.' || at <= start || at == end - 1) {
+            return false;
+        }
+        int domainEnd = end;
+        while (domainEnd > at + 2 && email[domainEnd - 1] == ' ') {
+            domainEnd--;
+        }
+        if (domainEnd - at - 1 >= 2 && email[at + 1] == '[' && email[domainEnd - 1] == ']') {
+            return fallback.isValid(email, start, end);
+        }
+        return isValidUser(email, start, at) && isValidDomain(email, at + 1, domainEnd);
+    }
+
+    private static boolean isValidUser(char[] email, int start, int end) {
+        if (end - start > MAX_USERNAME_LEN) {
+            return false;
+        }
+        int states = LEADING;
+        for (int i = start; i < end && states != 0; i++) {
+            char curr = email[i];
+            int next = 0;
+            if ((states & (LEADING | DOT)) != 0) {
+                next |= wordStart(curr);
+                if ((states & LEADING) != 0 && curr == ' ') {
+                    next |= LEADING;
+                }
+            }
+            if ((states & ATOM) != 0) {
+                if (curr == '.') {
+                    next |= DOT;
+                } else if (curr == '\\') {
+                    next |= ATOM_ESCAPE;
+                } else if (ATOM_CHARS[curr]) {
+                    next |= ATOM;
+                }
+            }
+            if ((states & ATOM_ESCAPE) != 0) {
+                next |= ATOM;
+            }
+            if ((states & (QUOTED | QUOTED_BACKSLASH)) != 0) {
+                if (curr == '\"') {
+                    next |= QUOTE_CLOSED;
+                    if ((states & QUOTED_BACKSLASH) != 0) {
+                        next |= QUOTED;
+                    }
+                } else if (curr == '\\') {
+                    next |= QUOTED_BACKSLASH;
+                } else {
+                    next |= QUOTED;
+                }
+            }
+            if ((states & QUOTE_CLOSED) != 0 && curr == '.') {
+                next |= DOT;
+            }
+            states = next;
+        }
+        return (states & ACCEPTING) != 0;
+    }
+
+    private static int wordStart(char curr) {
+        if (curr == '\"') {
+            return QUOTED;
+        } else if (curr == '\\') {
+            return ATOM_ESCAPE;
+        }
+        return ATOM_CHARS[curr] ? ATOM : 0;
+    }
+
+    private boolean isValidDomain(char[] email, int start, int end) {
+        if (end - start > MAX_DOMAIN_LEN) {
+            return false;
+        }
+        if (email[end - 1] == '.') {
+            end--;
+        }
+
+        /*
+        * every label is 1 to 63 letters, digits and -s that starts and ends with a letter or digit. There must be
+        * at least two labels and the last one must start with a letter and be a known top level domain.
+        */
+        int labels = 0;
+        int labelStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && email[i] != '.') {
+                char curr = email[i];
+                if (!isLetterOrDigit(curr) && curr != '-') {
+                    return false;
+                }
+                continue;
+            }
+            int length = i - labelStart;
+            if (length == 0 || length > MAX_LABEL_LEN || !isLetterOrDigit(email[labelStart])
+                    || !isLetterOrDigit(email[i - 1])) {
+                return false;
+            }
+            labels++;
+            if (i < end) {
+                labelStart = i + 1;
+            }
+        }
+        return labels >= 2 && !isDigit(email[labelStart]) && isTopLevelDomain(email, labelStart, end);
+    }
+
+    private boolean isTopLevelDomain(char[] email, int start, int end) {
+        int low = 0;
+        int high = topLevelDomains.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(topLevelDomains[mid], email, start, end);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int compare(char[] tld, char[] email, int start, int end) {
+        int length = Math.min(tld.length, end - start);
+        for (int i = 0; i < length; i++) {
+            char curr = email[start + i];
+            if (curr >= 'A' && curr <= 'Z') {
+                curr += 'a' - 'A';
+            }
+            if (tld[i] != curr) {
+                return tld[i] - curr;
+            }
+        }
+        return tld.length - (end - start);
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
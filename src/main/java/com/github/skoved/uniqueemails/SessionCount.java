@@ -0,0 +1,29 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * The response of the session endpoints of EmailController. Holds the id of a session and the number of unique
+ * emails it has received so far.
+ */
+public class SessionCount {
+    private final String id;
+    private final long uniqueEmails;
+
+    SessionCount(String id, long uniqueEmails) {
+        this.id = id;
+        this.uniqueEmails = uniqueEmails;
+    }
+
+    /**
+     * @return the id of the session
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the number of unique emails the session has received
+     */
+    public long getUniqueEmails() {
+        return uniqueEmails;
+    }
+}
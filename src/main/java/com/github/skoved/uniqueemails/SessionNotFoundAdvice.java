@@ -0,0 +1,21 @@
+package com.github.skoved.uniqueemails;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Handles SessionNotFoundExceptions thrown by the session endpoints of EmailController.
+ */
+@ControllerAdvice
+public class SessionNotFoundAdvice {
+
+    @ResponseBody
+    @ExceptionHandler(SessionNotFoundException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    String sessionNotFoundHandler(SessionNotFoundException ex) {
+        return ex.getMessage();
+    }
+}
@@ -0,0 +1,11 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * Thrown when a request refers to a session that was never opened, has been closed or has expired.
+ */
+class SessionNotFoundException extends RuntimeException {
+
+    SessionNotFoundException(String id) {
+        super("Could not find session " + id + ". It may have been closed or expired.");
+    }
+}
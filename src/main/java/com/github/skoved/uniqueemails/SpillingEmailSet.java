@@ -0,0 +1,273 @@
+package com.github.skoved.uniqueemails;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An exact UniqueEmailSet for batches with more unique emails than fit in memory. Fingerprints are added to a
+ * FingerprintEmailSet until adding one more would grow it past the memory budget, at which point its fingerprints
+ * are sorted and written to disk as a run in the format of DedupeStates, taking about 7 to 8 bytes per 64 bit
+ * fingerprint, and the set starts over empty. The size is counted by merging the sorted runs, reading each run
+ * once, and is remembered until more emails are added.
+ * <p>
+ * The parallel parts of a batch are plain FingerprintEmailSets created by newPart, which are added to this set one
+ * fingerprint at a time, so a request only holds the budget plus its parts in memory.
+ * <p>
+ * The same email can be in several runs, so once there are MAX_RUNS runs they are merged into a single run of
+ * distinct fingerprints. This bounds the open files when counting and keeps the disk used to at most MAX_RUNS
+ * runs more than the distinct fingerprints need. Fingerprints are never audited, since the emails behind them are
+ * not kept.
+ */
+class SpillingEmailSet implements UniqueEmailSet {
+    private static final int MAX_RUNS = 64;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final int bits;
+    private final long memoryBudget;
+    private final EmailSpill spill;
+    private final List<Path> runs = new ArrayList<>();
+    private FingerprintEmailSet memory;
+    private long runBytes;
+    private long size = -1;
+    private long peakBytes;
+
+    /**
+     * Creates a new, empty SpillingEmailSet.
+     *
+     * @param bits the number of bits in each fingerprint, either 64 or 128
+     * @param memoryBudget the bytes the in memory fingerprints can use before they are written to disk
+     * @param spill the directory runs are written to
+     */
+    SpillingEmailSet(int bits, long memoryBudget, EmailSpill spill) {
+        this.bits = bits;
+        this.memoryBudget = memoryBudget;
+        this.spill = spill;
+        this.memory = new FingerprintEmailSet(bits, false);
+    }
+
+    /**
+     * Adds a formatted email to the set.
+     *
+     * @param email a formatted email
+     * @return true if the email was not already in memory. It may still be in a run on disk.
+     */
+    @Override
+    public boolean add(String email) {
+        makeRoom();
+        return added(memory.add(email));
+    }
+
+    /**
+     * Adds every email in a part created by newPart, or in another SpillingEmailSet writing to the same spill, to
+     * this set. The runs of another SpillingEmailSet are taken over by this one, so it must not be used afterwards.
+     */
+    @Override
+    public void merge(UniqueEmailSet other) {
+        if (other instanceof FingerprintEmailSet && ((FingerprintEmailSet) other).getWidth() == bits / 64) {
+            // a part is added one fingerprint at a time, so it never takes the set over its budget
+            long[] fingerprints = ((FingerprintEmailSet) other).fingerprints();
+            int width = bits / 64;
+            for (int i = 0; i < fingerprints.length; i += width) {
+                makeRoom();
+                added(memory.addFingerprint(fingerprints[i], width == 2 ? fingerprints[i + 1] : 0));
+            }
+            return;
+        }
+        if (other instanceof SpillingEmailSet && ((SpillingEmailSet) other).bits == bits
+                && ((SpillingEmailSet) other).spill == spill) {
+            SpillingEmailSet set = (SpillingEmailSet) other;
+            runs.addAll(set.runs);
+            set.runs.clear();
+            runBytes += set.runBytes;
+            set.runBytes = 0;
+            memory.merge(set.memory);
+        } else {
+            throw new IllegalArgumentException("A SpillingEmailSet can only be merged with its parts or another"
+                    + " SpillingEmailSet with the same settings.");
+        }
+        added(true);
+        if (memory.estimatedBytes() > memoryBudget) {
+            spill();
+        } else if (runs.size() >= MAX_RUNS) {
+            compact();
+        }
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, since the fingerprints on disk can only be read in order
+     */
+    @Override
+    public long countNew(UniqueEmailSet other) {
+        throw new UnsupportedOperationException("A SpillingEmailSet cannot look up single emails.");
+    }
+
+    /**
+     * @return a new in memory FingerprintEmailSet with the same fingerprints as this set
+     */
+    @Override
+    public UniqueEmailSet newPart() {
+        return new FingerprintEmailSet(bits, false);
+    }
+
+    /**
+     * Counts the distinct fingerprints. If any have been written to disk the ones in memory are written too and
+     * every run is merged, so the first call after emails are added reads every run once.
+     */
+    @Override
+    public long size() {
+        if (runs.isEmpty()) {
+            return memory.size();
+        }
+        if (size == -1) {
+            if (memory.size() > 0) {
+                spill();
+            }
+            long[] count = new long[1];
+            mergeRuns((h1, h2) -> count[0]++);
+            size = count[0];
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated memory used by the fingerprints in memory plus the bytes of the runs on disk
+     */
+    @Override
+    public long estimatedBytes() {
+        return memory.estimatedBytes() + runBytes;
+    }
+
+    /**
+     * @return the most memory the fingerprints in memory have used before being written to disk
+     */
+    long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @return the number of runs on disk
+     */
+    int getRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Writes the fingerprints in memory to disk first if adding one more would grow them past the memory budget.
+     */
+    private void makeRoom() {
+        if (memory.isFull() && 2 * memory.estimatedBytes() > memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Forgets the counted size if a fingerprint was added and keeps track of the peak memory.
+     *
+     * @return added
+     */
+    private boolean added(boolean added) {
+        if (added) {
+            size = -1;
+            peakBytes = Math.max(peakBytes, memory.estimatedBytes());
+        }
+        return added;
+    }
+
+    /**
+     * Writes the fingerprints in memory to a new run and empties the in memory set.
+     */
+    private void spill() {
+        Path run = spill.newRun();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE)) {
+            DedupeStates.write(memory, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        runBytes += spill.written(run);
+        runs.add(run);
+        memory = new FingerprintEmailSet(bits, false);
+        if (runs.size() >= MAX_RUNS) {
+            compact();
+        }
+    }
+
+    /**
+     * Merges every run into a single run of distinct fingerprints. The runs are read twice, once to count the
+     * fingerprints for the header of the new run and once to write them.
+     */
+    private void compact() {
+        long[] count = new long[1];
+        mergeRuns((h1, h2) -> count[0]++);
+        Path run = spill.newRun();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE)) {
+            DedupeStates.FingerprintWriter writer = DedupeStates.fingerprintWriter(out, bits / 64, count[0]);
+            mergeRuns(writer::write);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long bytes = spill.written(run);
+        runs.forEach(spill::delete);
+        runs.clear();
+        runs.add(run);
+        runBytes = bytes;
+    }
+
+    /**
+     * Reads every run at once in sorted order and passes each distinct fingerprint to the consumer.
+     */
+    private void mergeRuns(FingerprintConsumer consumer) {
+        List<InputStream> streams = new ArrayList<>(runs.size());
+        PriorityQueue<DedupeStates.FingerprintReader> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                (a, b) -> DedupeStates.compare(a.getH1(), a.getH2(), b.getH1(), b.getH2()));
+        try {
+            for (Path run : runs) {
+                InputStream in = new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE);
+                streams.add(in);
+                DedupeStates.FingerprintReader reader = DedupeStates.fingerprints(in);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+
+            boolean first = true;
+            long h1 = 0;
+            long h2 = 0;
+            while (!queue.isEmpty()) {
+                DedupeStates.FingerprintReader reader = queue.poll();
+                if (first || reader.getH1() != h1 || reader.getH2() != h2) {
+                    first = false;
+                    h1 = reader.getH1();
+                    h2 = reader.getH2();
+                    consumer.accept(h1, h2);
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (InputStream in : streams) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // the run has been read, failing to close it does not change the result
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface FingerprintConsumer {
+        void accept(long h1, long h2) throws IOException;
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.skoved.uniqueemails;
+
+import java.util.List;
+
+/**
+ * The last line of the stream returned by the unique emails stream endpoint of EmailController. Holds the number of
+ * unique emails streamed before it, the number of invalid strings with a sample of them, and the error that ended
+ * the stream early, if any.
+ */
+public class StreamedCount {
+    private final long uniqueEmails;
+    private final long invalidCount;
+    private final boolean stopped;
+    private final List<InvalidEmail> sample;
+    private final String error;
+
+    StreamedCount(long uniqueEmails, long invalidCount, boolean stopped, List<InvalidEmail> sample, String error) {
+        this.uniqueEmails = uniqueEmails;
+        this.invalidCount = invalidCount;
+        this.stopped = stopped;
+        this.sample = sample;
+        this.error = error;
+    }
+
+    /**
+     * @return the number of unique valid emails streamed
+     */
+    public long getUniqueEmails() {
+        return uniqueEmails;
+    }
+
+    /**
+     * @return the number of strings read that are not valid emails, or 0 if the stream ended with an error
+     */
+    public long getInvalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return whether the batch was stopped after email.invalid.stop-after invalid strings without being read to
+     * its end
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return the first invalid strings and their index in the batch, or none if the stream ended with an error
+     */
+    public List<InvalidEmail> getSample() {
+        return sample;
+    }
+
+    /**
+     * @return why the batch could not be read to its end, or null if it was
+     */
+    public String getError() {
+        return error;
+    }
+}
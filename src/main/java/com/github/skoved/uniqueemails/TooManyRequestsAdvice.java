@@ -0,0 +1,21 @@
+package com.github.skoved.uniqueemails;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Handles TooManyRequestsExceptions thrown when EmailAdmission has no room for another request.
+ */
+@ControllerAdvice
+public class TooManyRequestsAdvice {
+
+    @ResponseBody
+    @ExceptionHandler(TooManyRequestsException.class)
+    @ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+    String tooManyRequestsHandler(TooManyRequestsException ex) {
+        return ex.getMessage() + " Please try again later.";
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * Thrown when a request cannot be processed because the server is already processing as many requests or emails
+ * as it is allowed to.
+ */
+class TooManyRequestsException extends RuntimeException {
+
+    TooManyRequestsException(String message) {
+        super(message);
+    }
+}
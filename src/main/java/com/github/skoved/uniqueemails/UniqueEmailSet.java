@@ -0,0 +1,53 @@
+package com.github.skoved.uniqueemails;
+
+/**
+ * Keeps track of the distinct formatted emails that have been added to it. Parts of a batch are deduplicated
+ * into separate UniqueEmailSets which are then merged together, so every implementation must be able to merge
+ * another instance of its own type.
+ */
+interface UniqueEmailSet {
+
+    /**
+     * Adds a formatted email to the set.
+     *
+     * @param email a formatted email
+     * @return true if the set changed as a result of adding the email
+     */
+    boolean add(String email);
+
+    /**
+     * Adds every email in another set of the same type to this set.
+     *
+     * @param other the set to merge into this one
+     * @throws IllegalArgumentException if the other set cannot be merged into this one
+     */
+    void merge(UniqueEmailSet other);
+
+    /**
+     * Counts the emails in another set of the same type that are not in this set, without changing either set.
+     *
+     * @param other the set whose emails are looked up in this one
+     * @return the number of emails merging the other set would add to this one
+     * @throws IllegalArgumentException if the other set cannot be merged into this one
+     * @throws UnsupportedOperationException if the set cannot tell which emails it holds
+     */
+    long countNew(UniqueEmailSet other);
+
+    /**
+     * Creates a set for a part of a batch, such as a parallel chunk, that is merged into this set once the part
+     * is done. Parts are always kept in memory, so only the set of the whole batch writes to disk.
+     *
+     * @return a new, empty set that can be merged into this one
+     */
+    UniqueEmailSet newPart();
+
+    /**
+     * @return the number of distinct emails that have been added to the set
+     */
+    long size();
+
+    /**
+     * @return a rough estimate of the heap memory used by the set in bytes
+     */
+    long estimatedBytes();
+}
@@ -0,0 +1,99 @@
+package com.github.skoved.uniqueemails;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the UniqueEmailSets used to count unique emails exactly. By default emails are deduplicated by their
+ * 64 bit fingerprint. Setting email.dedupe.fingerprint-bits to 0 stores the emails themselves in a HashSet instead.
+ * Setting email.dedupe.memory-budget makes the set of a single request write its fingerprints to disk once it uses
+ * more memory than the budget, so batches with more unique emails than fit in memory can still be counted. The
+ * parallel chunks of a request are kept in memory and merged into its one set, while the parallel segments of a
+ * file, which are much larger, each get an equal share of the budget.
+ */
+@Component
+public class UniqueEmailSets {
+    private final int fingerprintBits;
+    private final boolean audit;
+    private final long memoryBudget;
+    private final Path spillDirectory;
+
+    /**
+     * Creates a new UniqueEmailSets.
+     *
+     * @param fingerprintBits the number of bits in each fingerprint, either 64 or 128, or 0 to store the emails
+     * @param audit whether fingerprint sets also keep the emails so collisions can be detected
+     * @param memoryBudget the bytes the sets of a request can use before they write their fingerprints to disk, or
+     *                     0 to always keep them in memory
+     * @param spillDirectory the directory fingerprints are written to, or empty for the system temporary directory
+     */
+    public UniqueEmailSets(@Value("${email.dedupe.fingerprint-bits:64}") int fingerprintBits,
+                           @Value("${email.dedupe.audit:false}") boolean audit,
+                           @Value("${email.dedupe.memory-budget:0}") long memoryBudget,
+                           @Value("${email.dedupe.spill-directory:}") String spillDirectory) {
+        if (fingerprintBits != 0 && fingerprintBits != 64 && fingerprintBits != 128) {
+            throw new IllegalArgumentException("email.dedupe.fingerprint-bits must be 0, 64 or 128.");
+        }
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("email.dedupe.memory-budget must not be negative.");
+        }
+        this.fingerprintBits = fingerprintBits;
+        this.audit = audit;
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = Paths.get(spillDirectory.isEmpty() ? System.getProperty("java.io.tmpdir")
+                : spillDirectory);
+    }
+
+    /**
+     * @return a new, empty set that counts unique emails exactly
+     */
+    UniqueEmailSet newExactSet() {
+        return fingerprintBits == 0 ? new HashEmailSet() : new FingerprintEmailSet(fingerprintBits, audit);
+    }
+
+    /**
+     * Creates a set for a request that may be larger than memory. When a memory budget is set the set is a
+     * SpillingEmailSet, which uses 128 bit fingerprints when email.dedupe.fingerprint-bits is 0 and is never
+     * audited. Otherwise it is the same as newExactSet.
+     *
+     * @param spill the request's spill, created by newSpill
+     * @return a new, empty set that counts unique emails exactly
+     */
+    UniqueEmailSet newExactSet(EmailSpill spill) {
+        return newExactSet(spill, 1);
+    }
+
+    /**
+     * Creates one of several sets of a request that are held in memory at the same time, each of which gets an
+     * equal share of the memory budget.
+     *
+     * @param spill the request's spill, created by newSpill
+     * @param shares the number of sets the budget is shared between
+     * @return a new, empty set that counts unique emails exactly
+     */
+    UniqueEmailSet newExactSet(EmailSpill spill, int shares) {
+        if (memoryBudget == 0) {
+            return newExactSet();
+        }
+        return new SpillingEmailSet(fingerprintBits == 0 ? 128 : fingerprintBits, Math.max(1, memoryBudget / shares),
+                spill);
+    }
+
+    /**
+     * @return a new spill for the sets of one request, which must be closed once the request is done with them
+     */
+    EmailSpill newSpill() {
+        return new EmailSpill(spillDirectory);
+    }
+
+    /**
+     * @return a new, empty set that counts unique emails exactly and can be serialized by DedupeStates. The state
+     * of a set has to be compact, so it always keeps fingerprints rather than emails, 128 bit ones when
+     * email.dedupe.fingerprint-bits is 0, and is never audited.
+     */
+    FingerprintEmailSet newStateSet() {
+        return new FingerprintEmailSet(fingerprintBits == 0 ? 128 : fingerprintBits, false);
+    }
+}
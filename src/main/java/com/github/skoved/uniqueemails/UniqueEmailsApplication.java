@@ -2,11 +2,14 @@ package com.github.skoved.uniqueemails;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
- * Basic Spring Boot driver. Auto-generated from the Spring Boot Initializr
+ * Basic Spring Boot driver. Auto-generated from the Spring Boot Initializr. Scheduling is enabled so idle
+ * sessions can be closed.
  */
 @SpringBootApplication
+@EnableScheduling
 public class UniqueEmailsApplication {
 
 	public static void main(String[] args) {
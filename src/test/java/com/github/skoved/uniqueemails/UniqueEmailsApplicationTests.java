@@ -1,11 +1,57 @@
 package com.github.skoved.uniqueemails;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.validator.routines.EmailValidator;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class UniqueEmailsApplicationTests {
@@ -13,6 +59,9 @@ class UniqueEmailsApplicationTests {
 	@Autowired
 	EmailController emailController;
 
+	@Autowired
+	EmailBatchProcessor emailBatchProcessor;
+
 	@Test
 	void removeCommentBeginning() {
 		String email = "(comment)samkoved@gmail.com";
@@ -99,4 +148,935 @@ class UniqueEmailsApplicationTests {
 		assertEquals("samkoved@gmailcom", emailController.formatEmail(email3),
 				"Format Email Test passed!");
 	}
+
+	@Test
+	void validateEmailsTest() throws IOException {
+		String body = "[\"test.email@gmail.com\", \"test.email+spam@gmail.com\", \"testemail@gmail.com\","
+				+ " \"Sam Koved <samkoved@gmail.com>\", \"(comment)sam.koved@gmail.com\"]";
+		assertEquals(2, validate(body));
+		assertEquals(0, validate("[]"), "Validate Emails Test passed!");
+	}
+
+	@Test
+	void validateInvalidEmails() {
+		assertThrows(IllegalArgumentException.class,
+				() -> validate("[\"samkoved@gmail.com\", \"samkoved\"]"));
+		assertThrows(IllegalArgumentException.class, () -> validate(""));
+		assertThrows(IllegalArgumentException.class, () -> validate("{}"));
+		assertThrows(IllegalArgumentException.class,
+				() -> validate("[\"samkoved@gmail.com\""), "Validate Invalid Emails passed!");
+	}
+
+	@Test
+	void invalidEmailReport() throws IOException {
+		StringBuilder longValue = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			longValue.append('x');
+		}
+		String body = "[\"samkoved@gmail.com\", \"" + longValue + "\", \"invalid1\", \"samkoved@gmail.com\","
+				+ " \"invalid2\", \"invalid3\"]";
+		EmailBatchProcessor sampled = new EmailBatchProcessor(new CommonsAddressValidator(), DomainRules.NONE,
+				new EmailCache(0), new EmailMetrics(new SimpleMeterRegistry(), false, 1), 2, 2, 2, 0);
+		EmailBatchProcessor.Result result = process(sampled, body);
+		assertEquals(4, result.getInvalidCount());
+		assertEquals(2, result.getInvalidSample().size());
+		assertEquals(1, result.getInvalidSample().get(0).getIndex());
+		assertEquals(259, result.getInvalidSample().get(0).getValue().length());
+		assertEquals(2, result.getInvalidSample().get(1).getIndex());
+		assertEquals("invalid1", result.getInvalidSample().get(1).getValue());
+		assertFalse(result.isStopped());
+
+		EmailBatchProcessor stopping = new EmailBatchProcessor(new CommonsAddressValidator(), DomainRules.NONE,
+				new EmailCache(0), new EmailMetrics(new SimpleMeterRegistry(), false, 1), 10, 2, 10, 3);
+		result = process(stopping, body);
+		assertEquals(3, result.getInvalidCount());
+		assertEquals(4, result.getInvalidSample().get(2).getIndex());
+		assertTrue(result.isStopped());
+
+		InvalidEmailsException e = assertThrows(InvalidEmailsException.class,
+				() -> validate("[\"samkoved@gmail.com\", \"samkoved\"]"));
+		InvalidEmailReport report = new InvalidEmailsAdvice().invalidEmailsHandler(e);
+		assertEquals(1, report.getInvalidCount());
+		assertEquals(1, report.getSample().get(0).getIndex());
+		assertEquals("samkoved", report.getSample().get(0).getValue(), "Invalid Email Report passed!");
+	}
+
+	@Test
+	void canonicalizerMatchesFormatEmail() {
+		EmailCanonicalizer canonicalizer = new EmailCanonicalizer(new ScanningAddressValidator(new CommonsAddressValidator()));
+		assertEquals("samkoved@domain", canonicalizer.canonicalize("domain!samkoved@gmail.com"));
+		assertEquals("samkoved@gmailcom", canonicalizer.canonicalize("samkoved%gmail.com@yahoo.com"));
+		assertEquals("testemail@gmailcom", canonicalizer.canonicalize("Test <test.email+spam@gmail.com>"));
+		assertEquals("samkoved@gmailcom", canonicalizer.canonicalize("(comment( () ))samkoved@(c)gmail.com"));
+		assertNull(canonicalizer.canonicalize("samkoved(comment@gmail.com"));
+		assertNull(canonicalizer.canonicalize(""), "Canonicalizer Matches Format Email passed!");
+	}
+
+	@Test
+	void canonicalizerMatchesLegacyChain() {
+		EmailValidator validator = EmailValidator.getInstance(false, false);
+		EmailCanonicalizer canonicalizer = new EmailCanonicalizer(new ScanningAddressValidator(new CommonsAddressValidator()));
+		String[] pieces = {"sam", "koved", "sam", "koved", ".", "+", "+spam", "@", "(", ")", "(c)", "\"", "\\",
+				"<", ">", "!", "%", " ", "gmail.com", "yahoo.com", "domain", "\"a b\"", "\"a(b)!c\"", "x.y",
+				"Ärger", "ß", "İ", "ΣΑΣ", "ǅ", "\uD801\uDC00", "Bücher.de"};
+		EmailCanonicalizer kept = new EmailCanonicalizer(new ScanningAddressValidator(new CommonsAddressValidator()),
+				DomainRules.parse("*"));
+		EmailCanonicalizer folded = new EmailCanonicalizer(new ScanningAddressValidator(new CommonsAddressValidator()),
+				DomainRules.parse("* lowercase"));
+		Random random = new Random(42);
+		for (int n = 0; n < 50000; n++) {
+			StringBuilder local = new StringBuilder();
+			StringBuilder domain = new StringBuilder();
+			for (int i = random.nextInt(5); i >= 0; i--) {
+				local.append(pieces[random.nextInt(pieces.length)]);
+			}
+			for (int i = random.nextInt(3); i >= 0; i--) {
+				domain.append(pieces[random.nextInt(pieces.length)]);
+			}
+			if (random.nextBoolean()) {
+				domain.setLength(0);
+				domain.append(random.nextBoolean() ? "gmail.com" : "(c)yahoo.com");
+			}
+			String raw = random.nextInt(4) == 0 ? local.toString() : local + "@" + domain;
+			String expected;
+			try {
+				String email = emailController.unwrap(emailController.removeComments(raw));
+				expected = !validator.isValid(email) || email.charAt(0) == ' '
+						|| email.charAt(email.length() - 1) == ' ' ? null : emailController.formatEmail(email);
+			} catch (RuntimeException e) {
+				continue;
+			}
+			assertEquals(expected, canonicalizer.canonicalize(raw), raw);
+			if (raw.indexOf('!') == -1 && raw.indexOf('%') == -1) {
+				String plain = kept.canonicalize(raw);
+				assertEquals(plain == null ? null : plain.toLowerCase(Locale.ROOT), folded.canonicalize(raw), raw);
+			}
+		}
+		assertEquals("ärger.σας@bücher.de", folded.canonicalize("ÄRGER.ΣΑΣ@BÜCHER.DE"),
+				"canonicalizerMatchesLegacyChain passed!");
+	}
+
+	@Test
+	void domainRules() {
+		DomainRules rules = DomainRules.parse("# providers\ngmail.com dots separators=+ lowercase\n"
+				+ "GoogleMail.com alias=gmail.com; outlook.com separators=+; yahoo.com separators=- lowercase\n"
+				+ "*.example.com lowercase; special.example.com separators=+  # exact beats suffix\n"
+				+ "old.org alias=new.org");
+		EmailCanonicalizer canonicalizer = new EmailCanonicalizer(
+				new ScanningAddressValidator(new CommonsAddressValidator()), rules);
+		assertEquals("samkoved@gmail.com", canonicalizer.canonicalize("Sam.Koved+news@gmail.com"));
+		assertEquals("samkoved@gmail.com", canonicalizer.canonicalize("Sam <sam.koved+a@GoogleMail.COM>"));
+		assertEquals("Sam.Koved@outlook.com", canonicalizer.canonicalize("Sam.Koved+news@Outlook.com"));
+		assertEquals("sam.koved+news@yahoo.com", canonicalizer.canonicalize("Sam.Koved+news-spam@yahoo.com"));
+		assertEquals("s.k+x@mail.example.com", canonicalizer.canonicalize("S.K+x@Mail.Example.com"));
+		assertEquals("S.K@special.example.com", canonicalizer.canonicalize("S.K+x@special.example.com"));
+		assertEquals("+x@outlook.com", canonicalizer.canonicalize("+x@outlook.com"));
+		// an alias of a domain without a rule is formatted the way the domain is
+		assertEquals("SK@neworg", canonicalizer.canonicalize("S.K+x@old.org"));
+		assertEquals(canonicalizer.canonicalize("S.K+x@new.org"), canonicalizer.canonicalize("S.K+x@old.org"));
+		EmailCanonicalizer aliasOnly = new EmailCanonicalizer(new CommonsAddressValidator(),
+				DomainRules.parse("googlemail.com alias=gmail.com"));
+		assertEquals("samk@gmailcom", aliasOnly.canonicalize("sam.k+x@googlemail.com"));
+		assertEquals(aliasOnly.canonicalize("sam.k+x@gmail.com"), aliasOnly.canonicalize("sam.k+x@googlemail.com"));
+		// domains without a rule and routed emails are formatted the way they always have been
+		assertEquals("SK@examplecom", canonicalizer.canonicalize("S.K+x@example.com"));
+		assertEquals("samkoved@domain", canonicalizer.canonicalize("domain!samkoved@gmail.com"));
+		assertEquals("samkoved@gmailcom", canonicalizer.canonicalize("samkoved%gmail.com@yahoo.com"));
+
+		EmailCanonicalizer strict = new EmailCanonicalizer(new CommonsAddressValidator(),
+				DomainRules.parse("* lowercase; gmail.com dots"));
+		assertEquals("s.k+x@other.org", strict.canonicalize("S.K+x@Other.org"));
+		assertEquals("SK+x@gmail.com", strict.canonicalize("S.K+x@gmail.com"));
+		EmailCanonicalizer aliasToDefault = new EmailCanonicalizer(new CommonsAddressValidator(),
+				DomainRules.parse("* lowercase; *.example.com dots; old.org alias=new.org; mail.org alias=a.example.com"));
+		assertEquals(aliasToDefault.canonicalize("S.K+x@new.org"), aliasToDefault.canonicalize("S.K+x@old.org"));
+		assertEquals(aliasToDefault.canonicalize("S.K+x@a.example.com"), aliasToDefault.canonicalize("S.K+x@mail.org"));
+		assertTrue(DomainRules.parse(" # nothing\n;").isEmpty());
+
+		StringBuilder table = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			table.append("domain").append(i).append(".com separators=+;*.sub").append(i).append(".org lowercase\n");
+		}
+		EmailCanonicalizer large = new EmailCanonicalizer(new CommonsAddressValidator(),
+				DomainRules.parse(table.toString()));
+		for (int i = 0; i < 5000; i += 7) {
+			assertEquals("a.b@domain" + i + ".com", large.canonicalize("a.b+c@domain" + i + ".com"));
+			assertEquals("a.b+c@x.sub" + i + ".org", large.canonicalize("A.B+c@x.sub" + i + ".org"));
+			assertEquals("ab@sub" + i + "org", large.canonicalize("a.b+c@sub" + i + ".org"));
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> DomainRules.parse("gmail.com dots; gmail.com lowercase"));
+		assertThrows(IllegalArgumentException.class, () -> DomainRules.parse("gmail.com fold"));
+		assertThrows(IllegalArgumentException.class, () -> DomainRules.parse("gmail.com separators=a"));
+		assertThrows(IllegalArgumentException.class, () -> DomainRules.parse("a.com alias=b.com; b.com alias=a.com"));
+		assertThrows(IllegalArgumentException.class, () -> DomainRules.parse("a@b.com dots"),
+				"Domain Rules passed!");
+	}
+
+	@Test
+	void scanningValidatorMatchesCommons() {
+		EmailValidator validator = EmailValidator.getInstance(false, false);
+		CrossCheckingAddressValidator crossCheck = new CrossCheckingAddressValidator(new CommonsAddressValidator(),
+				new ScanningAddressValidator(new CommonsAddressValidator()));
+		String[] locals = {"sam", "Sam.Koved", "s", "\"sam koved\"", "\"a\\\"b\"", "\"a\\\"", "a\\@b", "a\\ b", " sam",
+				"sam.", ".sam", "sa..m", "o'neil", "a+b", "\"\".sam", "sam.\"x\"", "a\"b", "a(b)", "[a]", "a,b", "\\",
+				"ünï", "\"a\"\"b\"", "x\tz", "abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyzabcdefghijklm"};
+		String[] domains = {"gmail.com", "GMAIL.COM", "a.b.c.museum", "sub-domain.example.org", "-a.com", "a-.com",
+				"a.com.", "a.com ", "a.com. ", "a..com", "localhost", "com", "a.c0m", "a.123", "a.xn--p1ai", "a.notatld",
+				"[127.0.0.1]", "[::1]", "a_b.com", "a.b-c", "mañana.com", "a.com\n", "1.2.3.4"};
+		Random random = new Random(7);
+		for (int n = 0; n < 100000; n++) {
+			String email;
+			if (n < locals.length * domains.length) {
+				email = locals[n / domains.length] + "@" + domains[n % domains.length];
+			} else {
+				String alphabet = "abab..@\"\"\\ -(x)[]1Cm,'";
+				char[] chars = new char[1 + random.nextInt(20)];
+				for (int i = 0; i < chars.length; i++) {
+					chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+				}
+				email = new String(chars) + (random.nextInt(4) == 0 ? "" : "@" + domains[random.nextInt(domains.length)]);
+			}
+			char[] buf = email.toCharArray();
+			assertEquals(validator.isValid(email), crossCheck.isValid(buf, 0, buf.length), email);
+		}
+		assertEquals(0, crossCheck.getDisagreements(), "Scanning Validator Matches Commons passed!");
+	}
+
+	@Test
+	void parallelBatchMatchesSequential() throws IOException {
+		StringBuilder body = new StringBuilder("[");
+		for (int i = 0; i < 1000; i++) {
+			body.append(i == 0 ? "" : ",").append("\"sam.koved+").append(i).append("@gmail").append(i % 37).append(".com\"");
+			if (i % 101 == 0) {
+				body.append(",\"invalid").append(i).append("\"");
+			}
+		}
+		body.append("]");
+		EmailBatchProcessor sequential = new EmailBatchProcessor(new CommonsAddressValidator(), DomainRules.NONE,
+				new EmailCache(0), new EmailMetrics(new SimpleMeterRegistry(), false, 1), Integer.MAX_VALUE, 1, 10, 0);
+		EmailBatchProcessor parallel = new EmailBatchProcessor(new ScanningAddressValidator(new CommonsAddressValidator()),
+				DomainRules.NONE, new EmailCache(100), new EmailMetrics(new SimpleMeterRegistry(), true, 3), 10, 7,
+				10, 0);
+		EmailBatchProcessor.Result expected = process(sequential, body.toString());
+		EmailBatchProcessor.Result actual = process(parallel, body.toString());
+		assertEquals(10, expected.getInvalidCount());
+		assertEquals(expected.getInvalidCount(), actual.getInvalidCount());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(expected.getInvalidSample().get(i).getIndex(), actual.getInvalidSample().get(i).getIndex());
+			assertEquals(expected.getInvalidSample().get(i).getValue(), actual.getInvalidSample().get(i).getValue());
+		}
+
+		String valid = body.toString().replaceAll(",\"invalid\\d+\"", "");
+		assertEquals(37, process(sequential, valid).getUniqueEmails().size());
+		assertEquals(37, process(parallel, valid).getUniqueEmails().size(), "Parallel Batch Matches Sequential passed!");
+	}
+
+	@Test
+	void failedBatchStopsItsChunks() {
+		AtomicInteger running = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicBoolean failed = new AtomicBoolean();
+		// holds up the chunk it is called from until a little after the body fails
+		AddressValidator slow = (email, start, end) -> {
+			running.incrementAndGet();
+			started.countDown();
+			try {
+				while (!failed.get()) {
+					Thread.sleep(1);
+				}
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			return true;
+		};
+		EmailBatchProcessor processor = new EmailBatchProcessor(slow, DomainRules.NONE, new EmailCache(0),
+				new EmailMetrics(new SimpleMeterRegistry(), false, 1), 0, 100, 10, 0);
+		int[] read = new int[1];
+		EmailReader failing = new EmailReader() {
+			@Override
+			public String next() throws IOException {
+				if (read[0] == 200) {
+					try {
+						started.await();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					failed.set(true);
+					throw new IOException("The body was cut off.");
+				}
+				return "sam.koved+" + read[0]++ + "@gmail.com";
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		assertThrows(IOException.class, () -> processor.process(failing, HashEmailSet::new));
+		// the chunks already handed to the pool have stopped by the time the failure reaches the request
+		assertEquals(0, running.get(), "Failed Batch Stops Its Chunks passed!");
+	}
+
+	@Test
+	void hyperLogLogEstimate() {
+		HyperLogLog first = new HyperLogLog(12);
+		HyperLogLog second = new HyperLogLog(12);
+		for (int i = 0; i < 100000; i++) {
+			first.add("sam" + i + "@gmailcom");
+			second.add("sam" + (i + 50000) + "@gmailcom");
+		}
+		first.merge(second);
+		assertEquals(150000, first.size(), 150000 * 3 * first.standardError());
+
+		HyperLogLog small = new HyperLogLog(12);
+		for (int i = 0; i < 100; i++) {
+			small.add("sam" + i % 50 + "@gmailcom");
+		}
+		assertEquals(50, small.size(), 2);
+		assertThrows(IllegalArgumentException.class, () -> first.merge(new HyperLogLog(10)),
+				"HyperLogLog Estimate passed!");
+	}
+
+	@Test
+	void approximateUniqueEmails() throws IOException {
+		String body = "[\"test.email@gmail.com\", \"test.email+spam@gmail.com\", \"testemail@gmail.com\","
+				+ " \"samkoved@gmail.com\"]";
+		ApproximateCount count = emailController.approximateUniqueEmails(json(body), headers(MediaType.APPLICATION_JSON, body), null).join();
+		assertEquals(2, count.getEstimate());
+		assertThrows(IllegalArgumentException.class, () -> emailController.approximateUniqueEmails(json(body), headers(MediaType.APPLICATION_JSON, body), 30),
+				"Approximate Unique Emails passed!");
+	}
+
+	@Test
+	void fingerprintEmailSet() {
+		for (int bits : new int[]{64, 128}) {
+			FingerprintEmailSet first = new FingerprintEmailSet(bits, false);
+			FingerprintEmailSet second = new FingerprintEmailSet(bits, false);
+			for (int i = 0; i < 100000; i++) {
+				assertEquals(i < 50000, first.add("sam" + i % 50000 + "@gmailcom"));
+				second.add("sam" + (i + 25000) + "@gmailcom");
+			}
+			assertEquals(75000, first.countNew(second));
+			assertEquals(50000, first.size());
+			first.merge(second);
+			assertEquals(125000, first.size());
+		}
+
+		FingerprintEmailSet audited = new FingerprintEmailSet(64, true);
+		FingerprintEmailSet other = new FingerprintEmailSet(64, true);
+		audited.add("samkoved@gmailcom");
+		other.add("samkoved@gmailcom");
+		other.add("testemail@gmailcom");
+		assertEquals(1, audited.countNew(other));
+		audited.merge(other);
+		assertEquals(2, audited.size());
+		assertEquals(0, audited.getCollisions());
+		assertThrows(IllegalArgumentException.class, () -> audited.merge(new FingerprintEmailSet(64, false)),
+				"Fingerprint Email Set passed!");
+	}
+
+	@Test
+	void emailSessions() throws IOException {
+		String id = emailController.createSession().getId();
+		assertEquals(2, append(id, "[\"test.email@gmail.com\", \"samkoved@gmail.com\"]"));
+		assertEquals(3, append(id, "[\"test.email+spam@gmail.com\", \"sam.koved@yahoo.com\"]"));
+		assertThrows(IllegalArgumentException.class, () -> append(id, "[\"other@gmail.com\", \"invalid\"]"));
+		assertEquals(3, emailController.countSession(id).getUniqueEmails());
+		assertEquals(3, emailController.closeSession(id).getUniqueEmails());
+		assertThrows(SessionNotFoundException.class, () -> emailController.countSession(id));
+
+		EmailSessions sessions = new EmailSessions(new UniqueEmailSets(64, false, 0, ""), 1, 1, Duration.ZERO);
+		String first = sessions.create();
+		String second = sessions.create();
+		assertThrows(SessionNotFoundException.class, () -> sessions.count(first));
+		UniqueEmailSet batch = new FingerprintEmailSet(64, false);
+		batch.add("samkoved@gmailcom");
+		batch.add("testemail@gmailcom");
+		assertThrows(IllegalArgumentException.class, () -> sessions.append(second, batch));
+
+		// emails a full session already holds can be sent again
+		EmailSessions full = new EmailSessions(new UniqueEmailSets(64, false, 0, ""), 1, 2, Duration.ofMinutes(1));
+		String fullId = full.create();
+		assertEquals(2, full.append(fullId, batch));
+		UniqueEmailSet resent = new FingerprintEmailSet(64, false);
+		resent.add("testemail@gmailcom");
+		resent.add("samkoved@gmailcom");
+		assertEquals(2, full.append(fullId, resent));
+		resent.add("other@gmailcom");
+		assertThrows(IllegalArgumentException.class, () -> full.append(fullId, resent));
+		assertEquals(2, full.count(fullId));
+
+		sessions.closeIdleSessions();
+		assertThrows(SessionNotFoundException.class, () -> sessions.count(second), "Email Sessions passed!");
+	}
+
+	@Test
+	void emailCache() {
+		EmailCache cache = new EmailCache(10);
+		EmailCanonicalizer canonicalizer = new EmailCanonicalizer(new ScanningAddressValidator(new CommonsAddressValidator()));
+		for (int i = 0; i < 3; i++) {
+			assertEquals("testemail@gmailcom", cache.canonicalize("test.email+spam@gmail.com", canonicalizer));
+			assertNull(cache.canonicalize("invalid", canonicalizer));
+		}
+		// a string is only cached the second time it is seen
+		assertEquals(2, cache.stats().hitCount());
+		assertEquals(4, cache.stats().missCount());
+		assertEquals(2, cache.size());
+		String longString = String.join("", Collections.nCopies(300, "a")) + "@gmail.com";
+		for (int i = 0; i < 3; i++) {
+			assertNull(cache.canonicalize(longString, canonicalizer));
+		}
+		assertEquals(2, cache.size());
+		assertEquals(0, new EmailCache(0).size(), "Email Cache passed!");
+	}
+
+	@Test
+	void emailMetrics() throws IOException {
+		MeterRegistry registry = new SimpleMeterRegistry();
+		EmailBatchProcessor processor = new EmailBatchProcessor(new CommonsAddressValidator(), DomainRules.NONE,
+				new EmailCache(0), new EmailMetrics(registry, true, 2), 2, 2, 10, 0);
+		process(processor, "[\"test.email@gmail.com\", \"test.email+spam@gmail.com\", \"testemail@gmail.com\","
+				+ " \"samkoved@gmail.com\"]");
+		process(processor, "[\"samkoved@gmail.com\", \"invalid\"]");
+		assertEquals(5, registry.get("email.strings").tag("result", "valid").counter().count());
+		assertEquals(1, registry.get("email.strings").tag("result", "invalid").counter().count());
+		assertEquals(2, registry.get("email.batch.size").summary().count());
+		assertEquals(0.5, registry.get("email.batch.unique.ratio").summary().mean());
+		assertEquals(5, registry.get("email.stage").tag("stage", "parse").timer().count());
+		assertEquals(3, registry.get("email.stage").tag("stage", "validate").timer().count());
+		assertEquals(3, registry.get("email.stage").tag("stage", "dedupe").timer().count());
+
+		MeterRegistry disabled = new SimpleMeterRegistry();
+		process(new EmailBatchProcessor(new CommonsAddressValidator(), DomainRules.NONE,
+				new EmailCache(0), new EmailMetrics(disabled, false, 1), 2, 2, 10, 0), "[\"samkoved@gmail.com\"]");
+		assertEquals(0, disabled.get("email.batch.size").summary().count(), "Email Metrics passed!");
+	}
+
+	@Test
+	void emailFileProcessor(@TempDir Path directory) throws IOException {
+		StringBuilder file = new StringBuilder();
+		List<Long> invalidOffsets = new ArrayList<>();
+		long lines = 0;
+		for (int i = 0; i < 200; i++) {
+			if (i % 7 == 0) {
+				invalidOffsets.add((long) file.length());
+				file.append("invalid").append(i).append("\r\n\n");
+			} else {
+				file.append("sam.koved+").append(i).append("@gmail").append(i % 13).append(".com\n");
+			}
+			lines++;
+		}
+		Files.write(directory.resolve("emails.txt"), file.toString().getBytes(StandardCharsets.UTF_8));
+
+		EmailFileProcessor processor = new EmailFileProcessor(emailBatchProcessor, new UniqueEmailSets(64, false, 0, ""),
+				directory.toString(), 3, 16);
+		FileCount count = processor.process(processor.resolve("emails.txt"), true);
+		assertEquals(13, count.getUniqueEmails());
+		assertEquals(lines, count.getLines());
+		assertEquals(invalidOffsets.size(), count.getInvalidLines());
+		assertEquals(3, count.getReport().size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(invalidOffsets.get(i), count.getReport().get(i).getOffset());
+			assertEquals("invalid" + i * 7, count.getReport().get(i).getLine());
+		}
+		assertThrows(IllegalArgumentException.class, () -> processor.resolve("../emails.txt"));
+		assertThrows(IllegalArgumentException.class, () -> emailController.countFile("emails.txt", false),
+				"Email File Processor passed!");
+	}
+
+	@Test
+	void wireFormats() throws IOException, ServletException {
+		String json = "[\"test.email@gmail.com\", \"test.email+spam@gmail.com\", \"testemail@gmail.com\","
+				+ " \"\\\"sam koved\\\"@gmail.com\", \"samkoved@gmail.com\"]";
+		String text = "test.email@gmail.com\r\ntest.email+spam@gmail.com\n\ntestemail@gmail.com\n"
+				+ "\"sam koved\"@gmail.com\nsamkoved@gmail.com";
+		int expected = validate(json);
+		assertEquals(3, expected);
+		assertEquals(expected, validate(text, MediaType.parseMediaType("text/plain;charset=UTF-8")));
+		assertThrows(IllegalArgumentException.class,
+				() -> validate("samkoved@gmail.com\ninvalid", MediaType.TEXT_PLAIN));
+
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/email/validate");
+		request.addHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+		request.setContent(gzip(text));
+		MockFilterChain chain = new MockFilterChain();
+		new GzipRequestFilter().doFilter(request, new MockHttpServletResponse(), chain);
+		HttpServletRequest decompressed = (HttpServletRequest) chain.getRequest();
+		assertNull(decompressed.getHeader(HttpHeaders.CONTENT_ENCODING));
+		HttpHeaders textHeaders = new HttpHeaders();
+		textHeaders.setContentType(MediaType.TEXT_PLAIN);
+		assertEquals(expected, emailController.validateEmails(decompressed.getInputStream(), textHeaders).join()
+				.getBody());
+		assertEquals(expected, emailController.validateEmails(GzipRequestFilter.decode(
+				new ByteArrayInputStream(gzip(json))), new HttpHeaders()).join().getBody());
+
+		byte[] truncated = Arrays.copyOf(gzip(json), 20);
+		CompletionException e = assertThrows(CompletionException.class, () -> emailController.validateEmails(
+				GzipRequestFilter.decode(new ByteArrayInputStream(truncated)), new HttpHeaders()).join());
+		assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+		assertThrows(IllegalArgumentException.class, () -> GzipRequestFilter.decode(json(json)),
+				"Wire Formats passed!");
+	}
+
+	@Test
+	void emailExecutor() throws IOException {
+		EmailExecutor executor = new EmailExecutor(100, 1, 1);
+		String caller = Thread.currentThread().getName();
+		assertEquals(caller, executor.execute(99, () -> Thread.currentThread().getName()).join());
+
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<String> running = executor.execute(-1, () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return Thread.currentThread().getName();
+		});
+		CompletableFuture<String> queued = executor.execute(100, () -> "queued");
+		assertThrows(RejectedExecutionException.class, () -> executor.execute(100, () -> "rejected"));
+		release.countDown();
+		assertEquals("email-async-1", running.join());
+		assertEquals("queued", queued.join());
+		executor.destroy();
+		assertThrows(RejectedExecutionException.class, () -> executor.execute(100, () -> "shut down"),
+				"Email Executor passed!");
+	}
+
+	@Test
+	void emailAdmission() throws IOException {
+		EmailAdmission admission = new EmailAdmission(3, 100, 4, 1, Duration.ZERO);
+		assertThrows(RequestTooLargeException.class, () -> admission.admit(101));
+
+		EmailAdmission.Ticket ticket = admission.admit(-1).join();
+		assertThrows(TooManyRequestsException.class, () -> admission.admit(10));
+		EmailReader reader = ticket.limit(new JsonEmailReader(new JsonFactory(),
+				ticket.limit(json("[\"a@gmail.com\", \"b@gmail.com\", \"c@gmail.com\", \"d@gmail.com\"]"))));
+		for (int i = 0; i < 3; i++) {
+			reader.next();
+		}
+		assertEquals(4, admission.getInFlight());
+		assertThrows(RequestTooLargeException.class, reader::next);
+		ticket.close();
+		ticket.close();
+		assertEquals(0, admission.getInFlight());
+
+		EmailAdmission.Ticket second = admission.admit(-1).join();
+		InputStream body = second.limit(json(String.join("", Collections.nCopies(101, "a"))));
+		assertThrows(RequestTooLargeException.class, () -> body.read(new byte[200], 0, 200));
+		second.close();
+
+		EmailAdmission inFlight = new EmailAdmission(0, 0, 2, 0, Duration.ZERO);
+		EmailAdmission.Ticket first = inFlight.admit(-1).join();
+		EmailAdmission.Ticket other = inFlight.admit(-1).join();
+		EmailReader firstReader = first.limit(new LineEmailReader(json("a@gmail.com\nb@gmail.com"), StandardCharsets.UTF_8));
+		EmailReader otherReader = other.limit(new LineEmailReader(json("c@gmail.com"), StandardCharsets.UTF_8));
+		firstReader.next();
+		firstReader.next();
+		assertThrows(TooManyRequestsException.class, otherReader::next);
+		first.close();
+		other.close();
+		EmailReader retried = inFlight.admit(-1).join().limit(new LineEmailReader(json("c@gmail.com"), StandardCharsets.UTF_8));
+		assertEquals("c@gmail.com", retried.next());
+
+		// queued requests wait without a thread, in the order they came
+		EmailAdmission queued = new EmailAdmission(0, 0, 0, 1, Duration.ofMinutes(1));
+		EmailAdmission.Ticket running = queued.admit(-1).join();
+		CompletableFuture<EmailAdmission.Ticket> next = queued.admit(-1);
+		CompletableFuture<EmailAdmission.Ticket> last = queued.admit(-1);
+		assertFalse(next.isDone());
+		assertEquals(2, queued.getQueued());
+		running.close();
+		assertTrue(next.isDone());
+		assertFalse(last.isDone());
+		next.join().close();
+		last.join().close();
+		assertTrue(queued.admit(-1).isDone());
+		queued.destroy();
+
+		EmailAdmission timingOut = new EmailAdmission(0, 0, 0, 1, Duration.ofMillis(50));
+		EmailAdmission.Ticket held = timingOut.admit(-1).join();
+		CompletionException e = assertThrows(CompletionException.class, () -> timingOut.admit(-1).join());
+		assertTrue(e.getCause() instanceof TooManyRequestsException);
+		assertEquals(0, timingOut.getQueued());
+		held.close();
+		assertTrue(timingOut.admit(-1).isDone(), "Email Admission passed!");
+		timingOut.destroy();
+	}
+
+	private static byte[] gzip(String body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	@Test
+	void dedupeStates() throws IOException {
+		StringBuilder first = new StringBuilder("[");
+		StringBuilder second = new StringBuilder("[");
+		for (int i = 0; i < 3000; i++) {
+			first.append(i == 0 ? "" : ",").append("\"sam.koved+").append(i).append("@gmail").append(i).append(".com\"");
+			second.append(i == 0 ? "" : ",").append("\"samkoved@gmail").append(i + 2000).append(".com\"");
+		}
+		first.append("]");
+		second.append("]");
+		ByteArrayOutputStream states = new ByteArrayOutputStream();
+		states.write(state(first.toString(), null));
+		states.write(state(second.toString(), null));
+		states.write(state("[]", null));
+		MergedCount count = merge(states.toByteArray());
+		assertEquals(3, count.getStates());
+		assertEquals(5000, count.getUniqueEmails());
+		assertNull(count.getApproximate());
+
+		FingerprintEmailSet wide = new FingerprintEmailSet(128, false);
+		for (int i = 0; i < 1000; i++) {
+			wide.add("samkoved" + (i % 700) + "@gmailcom");
+		}
+		ByteArrayOutputStream wideState = new ByteArrayOutputStream();
+		DedupeStates.write(wide, wideState);
+		DedupeStates.write(wide, wideState);
+		assertEquals(700, DedupeStates.merge(new ByteArrayInputStream(wideState.toByteArray())).getSet().size());
+
+		ByteArrayOutputStream sketches = new ByteArrayOutputStream();
+		sketches.write(state(first.toString(), 14));
+		sketches.write(state(second.toString(), 14));
+		MergedCount approximate = merge(sketches.toByteArray());
+		assertEquals(5000, approximate.getUniqueEmails(), 5000 * 4 * approximate.getApproximate().getStandardError());
+
+		byte[] exact = state(first.toString(), null);
+		assertThrows(IllegalArgumentException.class, () -> merge(Arrays.copyOf(exact, exact.length - 1)));
+		assertThrows(IllegalArgumentException.class, () -> merge(new byte[0]));
+		assertThrows(IllegalArgumentException.class, () -> merge("[\"samkoved@gmail.com\"]".getBytes(StandardCharsets.UTF_8)));
+		sketches.write(exact);
+		assertThrows(IllegalArgumentException.class, () -> merge(sketches.toByteArray()), "Dedupe States passed!");
+	}
+
+	@Test
+	void spillingEmailSet(@TempDir Path directory) throws IOException {
+		StringBuilder body = new StringBuilder("[");
+		for (int i = 0; i < 30000; i++) {
+			body.append(i == 0 ? "" : ",").append("\"sam.koved+").append(i).append("@gmail").append(i % 9000).append(".com\"");
+		}
+		body.append("]");
+		long expected = process(emailBatchProcessor, body.toString()).getUniqueEmails().size();
+		assertEquals(9000, expected);
+
+		for (int bits : new int[] {64, 128}) {
+			UniqueEmailSets sets = new UniqueEmailSets(bits, false, 1024, directory.toString());
+			EmailSpill spill = sets.newSpill();
+			UniqueEmailSet uniqueEmails;
+			AtomicInteger created = new AtomicInteger();
+			try (JsonEmailReader reader = new JsonEmailReader(new JsonFactory(), json(body.toString()))) {
+				// past the parallel threshold, so the chunks are deduplicated into parts of the request's one set
+				uniqueEmails = emailBatchProcessor.process(reader, () -> {
+					created.incrementAndGet();
+					return sets.newExactSet(spill);
+				}).getUniqueEmails();
+			}
+			assertEquals(1, created.get());
+			assertTrue(((SpillingEmailSet) uniqueEmails).getPeakBytes() <= 1024);
+			assertEquals(expected, uniqueEmails.size());
+			assertTrue(spill.getRuns() > 64);
+			assertTrue(((SpillingEmailSet) uniqueEmails).getRuns() <= 64);
+			assertTrue(spill.getBytes() > 0);
+			assertTrue(uniqueEmails.estimatedBytes() >= 7 * expected);
+			spill.close();
+			assertEquals(0, directory.toFile().list().length);
+			// the size is remembered instead of being counted from the runs again
+			assertEquals(expected, uniqueEmails.size());
+		}
+
+		assertEquals(HashEmailSet.class, new UniqueEmailSets(0, false, 0, "").newExactSet(null).getClass(),
+				"Spilling Email Set passed!");
+	}
+
+	@Test
+	void knownEmails(@TempDir Path directory) throws Exception {
+		KnownEmails known = new KnownEmails(directory.toString(), 100000, 0.01, 1);
+		KnownCount count = known(known, "[\"sam.koved@gmail.com\", \"samkoved@gmail.com\", \"invalid\", \"other@gmail.com\"]", true);
+		assertEquals(2, count.getNewEmails());
+		assertEquals(1, count.getKnownEmails());
+		assertEquals(1, count.getInvalidStrings());
+		assertEquals(Collections.singletonList(0L), count.getNewIndexes());
+		count = known(known, "[\"samkoved+spam@gmail.com\", \"new@gmail.com\", \"new@gmail.com\"]", false);
+		assertEquals(1, count.getKnownEmails());
+		assertEquals(2, count.getNewEmails());
+		assertEquals(2, known.size());
+
+		List<CompletableFuture<KnownCount>> ingests = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			StringBuilder body = new StringBuilder("[");
+			for (int i = t * 10000; i < t * 10000 + 20000; i++) {
+				body.append(i == t * 10000 ? "" : ",").append("\"user").append(i).append("@gmail.com\"");
+			}
+			String batch = body.append("]").toString();
+			ingests.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return known(known, batch, true);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}));
+		}
+		long newEmails = 0;
+		for (CompletableFuture<KnownCount> ingest : ingests) {
+			newEmails += ingest.join().getNewEmails();
+		}
+		assertEquals(50000, newEmails);
+		assertEquals(50002, known.size());
+		known.destroy();
+
+		KnownEmails warm = new KnownEmails(directory.toString(), 100000, 0.01, 1);
+		assertEquals(0, warm.getReplayed());
+		assertEquals(50002, warm.size());
+		assertEquals(2, known(warm, "[\"user49999@gmail.com\", \"samkoved@gmail.com\"]", false).getKnownEmails());
+		warm.destroy();
+
+		Files.delete(directory.resolve("bloom.bin"));
+		Files.write(directory.resolve("emails.log"), "partial@gmail".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+		KnownEmails cold = new KnownEmails(directory.toString(), 100000, 0.01, 1);
+		assertEquals(50002, cold.getReplayed());
+		assertEquals(50002, cold.size());
+		assertEquals(1, known(cold, "[\"user0@gmail.com\", \"partial@gmail\"]", true).getKnownEmails());
+		cold.destroy();
+
+		// opens the corpus the way a restart would find it if the service died before a batch was flushed
+		String crashed = directory.resolve("crashed").toString();
+		KnownEmails dying = new KnownEmails(crashed, 1000, 0.01, 1);
+		known(dying, "[\"durable@gmail.com\"]", true);
+		Iterator<String> batch = Arrays.asList("lost@gmail.com", "durable@gmail.com").iterator();
+		KnownEmails[] restarted = new KnownEmails[1];
+		dying.check(new EmailReader() {
+			@Override
+			public String next() throws IOException {
+				if (batch.hasNext()) {
+					return batch.next();
+				}
+				dying.snapshot();
+				restarted[0] = new KnownEmails(crashed, 1000, 0.01, 1);
+				return null;
+			}
+
+			@Override
+			public void close() {
+			}
+		}, emailBatchProcessor, true);
+		assertEquals(1, restarted[0].size());
+		assertEquals(1, known(restarted[0], "[\"lost@gmail.com\", \"durable@gmail.com\"]", false).getNewEmails());
+		dying.destroy();
+		restarted[0].destroy();
+
+		assertThrows(IllegalArgumentException.class, () -> new KnownEmails("", 1, 0.01, 1)
+				.checkEnabled(), "Known Emails passed!");
+	}
+
+	@Test
+	void batchResultCache() throws Exception {
+		String body = "[\"cached.email@gmail.com\", \"cachedemail+spam@gmail.com\", \"other.cached@gmail.com\"]";
+		ResponseEntity<Integer> first = emailController.validateEmails(json(body),
+				headers(MediaType.APPLICATION_JSON, body)).join();
+		assertEquals(2, first.getBody());
+		String etag = sha256(body);
+		assertEquals(etag, first.getHeaders().getETag());
+		assertEquals(etag, emailController.validateEmails(json(body), headers(MediaType.APPLICATION_JSON, body))
+				.join().getHeaders().getETag());
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		headers.setIfNoneMatch(Arrays.asList("\"unknown\"", etag));
+		headers.setContentLength(0);
+		ResponseEntity<Integer> hit = emailController.validateEmails(json(""), headers).join();
+		assertEquals(2, hit.getBody());
+		assertEquals(etag, hit.getHeaders().getETag());
+		headers.setContentType(MediaType.TEXT_PLAIN);
+		assertEquals(0, emailController.validateEmails(json(""), headers).join().getBody());
+
+		String invalid = "[\"samkoved@gmail.com\", \"invalid\"]";
+		assertThrows(InvalidEmailsException.class, () -> validate(invalid));
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		headers.setIfNoneMatch(sha256(invalid));
+		InvalidEmailsException firstHit = assertThrows(InvalidEmailsException.class,
+				() -> emailController.validateEmails(json(""), headers));
+		InvalidEmailsException secondHit = assertThrows(InvalidEmailsException.class,
+				() -> emailController.validateEmails(json(""), headers));
+		// every hit gets an exception of its own, with the same message and sample
+		assertNotSame(firstHit, secondHit);
+		assertEquals(firstHit.getMessage(), secondHit.getMessage());
+		assertEquals(1, secondHit.getInvalidCount());
+		assertEquals(firstHit.getSample(), secondHit.getSample());
+		// a body is counted even when a cached ETag is sent with it
+		String other = "[\"new.body@gmail.com\"]";
+		HttpHeaders stale = headers(MediaType.APPLICATION_JSON, other);
+		stale.setIfNoneMatch(etag);
+		ResponseEntity<Integer> processed = emailController.validateEmails(json(other), stale).join();
+		assertEquals(1, processed.getBody());
+		assertEquals(sha256(other), processed.getHeaders().getETag());
+
+		BatchResultCache cache = new BatchResultCache(10, Duration.ofMinutes(1));
+		MeterRegistry registry = new SimpleMeterRegistry();
+		cache.bindTo(registry);
+		assertEquals(etag, cache.hash(json(body), null).complete(2));
+		BatchResultCache.Hashing hashing = cache.hash(json(body), null);
+		hashing.getBody().read();
+		assertEquals(etag, hashing.complete(2));
+		assertEquals(1, registry.get("email.result.cache.repeats").counter().count());
+		assertEquals(2, cache.get(Collections.singletonList(etag), null).getCount());
+		assertNull(cache.get(Collections.singletonList(etag), MediaType.TEXT_PLAIN));
+		assertEquals(1, registry.get("cache.gets").tag("cache", "email.result.cache").tag("result", "hit").functionCounter().count());
+
+		BatchResultCache off = new BatchResultCache(0, Duration.ofMinutes(1));
+		InputStream in = json(body);
+		assertTrue(off.hash(in, null).getBody() == in);
+		assertNull(off.hash(in, null).complete(2));
+		assertNull(off.get(Collections.singletonList(etag), null), "Batch Result Cache passed!");
+	}
+
+	@Test
+	void lightweightServer() throws Exception {
+		Properties settings = LightweightServer.settings(new String[] {"--server.port=0",
+				"--email.rules.domains=gmail.com dots separators=+", "--email.lightweight.threads=2"});
+		try (LightweightServer server = new LightweightServer(settings)) {
+			String url = "http://localhost:" + server.getPort() + "/email/validate";
+			String json = "[\"test.email@gmail.com\", \"test.email+spam@gmail.com\", \"testemail@yahoo.com\"]";
+			HttpURLConnection connection = post(url, json.getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_JSON,
+					null);
+			assertEquals(200, connection.getResponseCode());
+			assertEquals("2", read(connection.getInputStream()));
+			String etag = connection.getHeaderField(HttpHeaders.ETAG);
+			assertEquals(sha256(json), etag);
+
+			connection = post(url, gzip("a@b.com\nb@b.com\n"), MediaType.TEXT_PLAIN, "gzip");
+			assertEquals(200, connection.getResponseCode());
+			assertEquals("2", read(connection.getInputStream()));
+
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty(HttpHeaders.IF_NONE_MATCH, etag);
+			connection.setDoOutput(true);
+			connection.getOutputStream().close();
+			assertEquals(200, connection.getResponseCode());
+			assertEquals("2", read(connection.getInputStream()));
+
+			connection = post(url, "[\"samkoved@gmail.com\", \"invalid\"]".getBytes(StandardCharsets.UTF_8),
+					MediaType.APPLICATION_JSON, null);
+			assertEquals(400, connection.getResponseCode());
+			assertTrue(read(connection.getErrorStream()).startsWith("{\"message\":\"1 string is not a valid email."));
+
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			assertEquals(405, connection.getResponseCode());
+			connection = (HttpURLConnection) new URL(url + "/approximate").openConnection();
+			assertEquals(404, connection.getResponseCode(), "Lightweight Server passed!");
+		}
+	}
+
+	@Test
+	void uniqueEmailStream() throws IOException {
+		String body = "[\"test.email@gmail.com\", \"invalid\", \"test.email+spam@gmail.com\", \"other@gmail.com\"]";
+		String[] lines = stream(body, true).split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("{\"email\":\"testemail@gmailcom\",\"raw\":\"test.email@gmail.com\"}", lines[0]);
+		assertEquals("{\"email\":\"other@gmailcom\",\"raw\":\"other@gmail.com\"}", lines[1]);
+		assertTrue(lines[2].startsWith("{\"uniqueEmails\":2,\"invalidCount\":1,\"stopped\":false,\"sample\":[{"));
+		assertTrue(lines[2].endsWith("\"error\":null}"));
+
+		lines = stream("[\"test.email@gmail.com\", []]", false).split("\n");
+		assertEquals(2, lines.length);
+		assertEquals("{\"email\":\"testemail@gmailcom\"}", lines[0]);
+		assertTrue(lines[1].startsWith("{\"uniqueEmails\":1,\"invalidCount\":0,\"stopped\":false,\"sample\":[],\"error\":\""));
+		assertThrows(IllegalArgumentException.class, () -> emailController.streamUniqueEmails(null,
+				headers(MediaType.APPLICATION_JSON, ""), false), "Unique Email Stream passed!");
+	}
+
+	private int validate(String body) throws IOException {
+		return validate(body, MediaType.APPLICATION_JSON);
+	}
+
+	private int validate(String body, MediaType contentType) throws IOException {
+		return emailController.validateEmails(json(body), headers(contentType, body)).join().getBody();
+	}
+
+	private String stream(String body, boolean raw) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		emailController.streamUniqueEmails(json(body), headers(MediaType.APPLICATION_JSON, body), raw).join()
+				.getBody().writeTo(out);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private long append(String id, String body) throws IOException {
+		return emailController.appendToSession(id, json(body), headers(MediaType.APPLICATION_JSON, body)).join()
+				.getUniqueEmails();
+	}
+
+	private byte[] state(String body, Integer precision) throws IOException {
+		return emailController.dedupeState(json(body), headers(MediaType.APPLICATION_JSON, body), precision).join();
+	}
+
+	private MergedCount merge(byte[] states) throws IOException {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+		headers.setContentLength(states.length);
+		return emailController.mergeStates(new ByteArrayInputStream(states), headers).join();
+	}
+
+	private KnownCount known(KnownEmails known, String body, boolean ingest) throws IOException {
+		try (JsonEmailReader reader = new JsonEmailReader(new JsonFactory(), json(body))) {
+			return known.check(reader, emailBatchProcessor, ingest);
+		}
+	}
+
+	private static HttpURLConnection post(String url, byte[] body, MediaType contentType, String encoding)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty(HttpHeaders.CONTENT_TYPE, contentType.toString());
+		if (encoding != null) {
+			connection.setRequestProperty(HttpHeaders.CONTENT_ENCODING, encoding);
+		}
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body);
+		}
+		return connection;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		for (int n; (n = in.read(buffer)) != -1; ) {
+			bytes.write(buffer, 0, n);
+		}
+		in.close();
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String sha256(String body) throws Exception {
+		StringBuilder etag = new StringBuilder("\"");
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8))) {
+			etag.append(String.format("%02x", b));
+		}
+		return etag.append('"').toString();
+	}
+
+	private static HttpHeaders headers(MediaType contentType, String body) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(contentType);
+		headers.setContentLength(body.getBytes(StandardCharsets.UTF_8).length);
+		return headers;
+	}
+
+	private static EmailBatchProcessor.Result process(EmailBatchProcessor processor, String body) throws IOException {
+		try (JsonEmailReader reader = new JsonEmailReader(new JsonFactory(), json(body))) {
+			return processor.process(reader, HashEmailSet::new);
+		}
+	}
+
+	private static InputStream json(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+	}
 }